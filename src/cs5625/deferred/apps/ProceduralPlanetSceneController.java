@@ -4,8 +4,11 @@ import java.awt.Point;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseWheelEvent;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 
+import javax.management.JMException;
 import javax.media.opengl.glu.GLU;
 import javax.vecmath.AxisAngle4f;
 import javax.vecmath.Color3f;
@@ -20,6 +23,7 @@ import cs5625.deferred.materials.CookTorranceMaterial;
 import cs5625.deferred.materials.Material;
 import cs5625.deferred.materials.Texture2D;
 import cs5625.deferred.materials.UnshadedMaterial;
+import cs5625.deferred.misc.MemoryFootprintMonitor;
 import cs5625.deferred.misc.ScenegraphException;
 import cs5625.deferred.misc.Util;
 import cs5625.deferred.scenegraph.Geometry;
@@ -43,6 +47,9 @@ public class ProceduralPlanetSceneController extends SceneController {
 
 	private int mSubdivs = 5;
 	private boolean accelerate = false;
+	private float brushRadius = 3.0f;
+	private String mSavePath = "planet.tetmesh";
+	private MemoryFootprintMonitor mPlanetMonitor; //null if JMX registration failed
 
 	
 	private Geometry planet;
@@ -110,9 +117,20 @@ public class ProceduralPlanetSceneController extends SceneController {
 		
 		
 		
-		//Convert heightmesh into a tetmesh.
+		//Convert heightmesh into a tetmesh, unless there is a saved (and maybe edited) planet.
 		planet = new Geometry();
-		TetMesh planetMesh = planetHM.getTetmesh();
+		TetMesh planetMesh = null;
+		if (new File(mSavePath).exists()) {
+			try {
+				planetMesh = TetMesh.load(mSavePath);
+				System.out.println("loaded " + mSavePath);
+			}
+			catch (IOException e) {
+				System.out.println(e);
+			}
+		}
+		if (planetMesh == null)
+			planetMesh = planetHM.getTetmesh();
 		
 		System.out.println("converting to tetmesh");
 		
@@ -164,6 +182,16 @@ public class ProceduralPlanetSceneController extends SceneController {
 
 		planetMesh.setMats(mats1);
 		
+		//publish the planet's memory use over JMX (e.g. for jconsole)
+		try {
+			mPlanetMonitor = MemoryFootprintMonitor.register("planet", planetMesh);
+			MemoryFootprintMonitor.register("planetHeightmesh", planetHM);
+		}
+		catch (JMException e) {
+			System.out.println(e);
+		}
+		System.out.println(planetMesh.getMemoryFootprint());
+		
 		//planet.addMesh(waterMesh);
 		
 		
@@ -297,7 +325,41 @@ public class ProceduralPlanetSceneController extends SceneController {
 			TetMesh mesh = (TetMesh)(planet.getMeshes().get(0));
 			dir.add(mCamera.getPosition(), dir);
 			mesh.createTetAtFirstFaceAlongLine(new Vector3f(mCamera.getPosition()), dir, accelerate);
-			requiresRender();
+			planetEdited();
+		}
+		else if (c == 'x' || c == 'f') {
+			//carve out (x) or fill back in (f) a crater where the camera is looking
+			Vector3f dir = new Vector3f(0f, 0f, -1f);
+			Util.rotateTuple(mCamera.getOrientation(), dir);
+			TetMesh mesh = (TetMesh)(planet.getMeshes().get(0));
+			dir.add(mCamera.getPosition(), dir);
+			Vector3f hit = mesh.findFirstPointAlongLine(new Vector3f(mCamera.getPosition()), dir, accelerate);
+			if (hit != null) {
+				if (c == 'x') {
+					mesh.carveSphere(hit, brushRadius);
+					mesh.deleteIslands(); //anything cut off from the core falls away
+				}
+				else
+					mesh.fillSphere(hit, brushRadius);
+				planetEdited();
+			}
+		}
+		else if (c == 'z' || c == 'y') {
+			//undo (z) or redo (y) the last edit
+			TetMesh mesh = (TetMesh)(planet.getMeshes().get(0));
+			if (c == 'z' ? mesh.undo() : mesh.redo())
+				planetEdited();
+		}
+		else if (c == 'k') {
+			//save the planet, edits and all; it is loaded instead of generated on the next launch
+			TetMesh mesh = (TetMesh)(planet.getMeshes().get(0));
+			try {
+				mesh.save(mSavePath);
+				System.out.println("saved " + mSavePath);
+			}
+			catch (IOException e) {
+				System.out.println(e);
+			}
 		}
 		else if (c == 'o') {
 			//Swap camera modes...
@@ -359,6 +421,14 @@ public class ProceduralPlanetSceneController extends SceneController {
 		TetMesh mesh = (TetMesh)(planet.getMeshes().get(0));
 		dir.add(mCamera.getPosition(), dir);
 		mesh.deleteFirstTetAlongLine(new Vector3f(mCamera.getPosition()), dir, accelerate);
+		mesh.deleteIslands();
+		planetEdited();
+	}
+	
+	/** Redraw after an edit to the planet, and publish its new memory footprint over JMX. */
+	private void planetEdited() {
+		if (mPlanetMonitor != null)
+			mPlanetMonitor.update();
 		requiresRender();
 	}
 	
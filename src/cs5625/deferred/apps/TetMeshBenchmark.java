@@ -0,0 +1,190 @@
+package cs5625.deferred.apps;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import javax.vecmath.Vector3f;
+
+import procedural.Heightmesh;
+import procedural.Triangle;
+import procedural.Vertex;
+
+import cs5625.deferred.scenegraph.TetMesh;
+
+/** Command line timing harness for TetMesh construction.
+ *
+ * Times setTets against tet count on two kinds of mesh: icosphere planets as built by
+ * Heightmesh.getTetmesh with no shells (every tet shares the center vertex, the worst case for
+ * per-vertex face lookups) and cube grids split into six tets per cube (low, even vertex valence).
+ *
+ * Also reports each mesh's estimated heap footprint (see TetMesh.getMemoryFootprint), so that
+ * changes to the mesh's storage show up as memory regressions.
+ *
+ * Last, fires a fixed set of lines at each mesh through TetMesh.intersectLine with the BVH, and
+ * reports the mean time, BVH nodes visited and faces tested per line, then picks along the same
+ * lines with findFirstPointAlongLine and reports the mean time and nodes visited per pick.
+ *
+ * Usage: TetMeshBenchmark [maxSubdivs] [maxGridSize]
+ */
+public class TetMeshBenchmark {
+	private static final int RUNS = 3;
+	private static final int LINES = 2000;
+
+	public static void main(String[] args) {
+		int maxSubdivs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		int maxGrid = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+
+		ArrayList<String> results = new ArrayList<String>();
+		for (int s = 1; s <= maxSubdivs; s++) {
+			results.add(timeSetTets("planet/" + s, planetVerts(s), planetTets(s), 0, 20));
+		}
+		for (int n = 4; n <= maxGrid; n *= 2) {
+			results.add(timeSetTets("grid/" + n, gridVerts(n), gridTets(n), n / 2.0f, n / 2.0f));
+		}
+
+		System.out.println();
+		System.out.println("mesh\ttets\tsetTets ms (best of " + RUNS + ")\theap MB\tline us\tnodes/line\tfaces/line\tpick us\tnodes/pick");
+		for (String r : results) {
+			System.out.println(r);
+		}
+	}
+
+	/** Build a TetMesh from the given arrays RUNS times (after one warm-up) and report the fastest
+	 * setTets, then time lines at the last one (see timeLines). The mesh is about radius across from
+	 * (center, center, center).
+	 */
+	private static String timeSetTets(String name, float[] verts, int[] tets, float center, float radius) {
+		long best = Long.MAX_VALUE;
+		long bytes = 0;
+		TetMesh mesh = null;
+		for (int run = 0; run <= RUNS; run++) {
+			mesh = new TetMesh();
+			mesh.setVerts(verts, verts.length / 3);
+			long start = System.nanoTime();
+			mesh.setTets(tets, tets.length / 4);
+			long time = System.nanoTime() - start;
+			if (run > 0) best = Math.min(best, time);
+			//setTets leaves the face registry building in the background; wait for it (any lookup
+			//does) so that it doesn't eat into the next run
+			mesh.hasFace(0, 0, 0);
+			bytes = mesh.getMemoryFootprint().getTotalBytes();
+		}
+		return name + "\t" + tets.length / 4 + "\t" + String.format("%.2f", best / 1e6) + "\t" + String.format("%.1f", bytes / 1e6)
+				+ "\t" + timeLines(mesh, center, radius);
+	}
+
+	/** Intersect LINES lines with mesh (after one warm-up pass), each from a random direction well
+	 * outside the mesh to a random point near its middle, and report the mean time, nodes visited and
+	 * faces tested per line, then the mean time and nodes visited per pick along the same lines.
+	 * The lines are the same from run to run.
+	 */
+	private static String timeLines(TetMesh mesh, float center, float radius) {
+		long time = 0, nodes = 0, faces = 0, pickTime = 0, pickNodes = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			Random random = new Random(1);
+			time = nodes = faces = pickTime = pickNodes = 0;
+			for (int i = 0; i < LINES; i++) {
+				Vector3f start = new Vector3f((float)random.nextGaussian(), (float)random.nextGaussian(), (float)random.nextGaussian());
+				start.normalize();
+				start.scale(3 * radius);
+				start.add(new Vector3f(center, center, center));
+				Vector3f end = new Vector3f((float)random.nextGaussian(), (float)random.nextGaussian(), (float)random.nextGaussian());
+				end.scale(radius / 3);
+				end.add(new Vector3f(center, center, center));
+				long begin = System.nanoTime();
+				mesh.intersectLine(start, end, true);
+				time += System.nanoTime() - begin;
+				nodes += mesh.getLastQueryNodesVisited();
+				faces += mesh.getLastQueryFacesTested();
+				begin = System.nanoTime();
+				mesh.findFirstPointAlongLine(start, end, true);
+				pickTime += System.nanoTime() - begin;
+				pickNodes += mesh.getLastQueryNodesVisited();
+			}
+		}
+		return String.format("%.1f", time / 1e3 / LINES) + "\t" + String.format("%.1f", nodes / (double)LINES)
+				+ "\t" + String.format("%.1f", faces / (double)LINES) + "\t" + String.format("%.1f", pickTime / 1e3 / LINES)
+				+ "\t" + String.format("%.1f", pickNodes / (double)LINES);
+	}
+
+	private static Heightmesh planet(int subdivs) {
+		Heightmesh hm = new Heightmesh();
+		hm.createIcosa();
+		hm.subdivide(subdivs, true);
+		hm.scale(20.0f, 0.0f);
+		return hm;
+	}
+
+	/** Surface verts of an icosphere planet followed by its center vertex. */
+	private static float[] planetVerts(int subdivs) {
+		ArrayList<Vertex> v = planet(subdivs).getVerts();
+		float[] pos = new float[3 * (v.size() + 1)];
+		for (int i = 0; i < v.size(); i++) {
+			pos[3 * i] = v.get(i).pt.v.x;
+			pos[3 * i + 1] = v.get(i).pt.v.y;
+			pos[3 * i + 2] = v.get(i).pt.v.z;
+		}
+		return pos;
+	}
+
+	/** One tet per surface triangle of an icosphere planet, fanned to the center vertex. */
+	private static int[] planetTets(int subdivs) {
+		Heightmesh hm = planet(subdivs);
+		ArrayList<Triangle> tris = hm.getTriangles();
+		int center = hm.getVerts().size();
+		int[] tets = new int[4 * tris.size()];
+		for (int i = 0; i < tris.size(); i++) {
+			tets[4 * i] = tris.get(i).v0;
+			tets[4 * i + 1] = tris.get(i).v1;
+			tets[4 * i + 2] = tris.get(i).v2;
+			tets[4 * i + 3] = center;
+		}
+		return tets;
+	}
+
+	/** Corner verts of an n x n x n grid of unit cubes. */
+	private static float[] gridVerts(int n) {
+		float[] pos = new float[3 * (n + 1) * (n + 1) * (n + 1)];
+		int i = 0;
+		for (int z = 0; z <= n; z++) {
+			for (int y = 0; y <= n; y++) {
+				for (int x = 0; x <= n; x++) {
+					pos[i++] = x;
+					pos[i++] = y;
+					pos[i++] = z;
+				}
+			}
+		}
+		return pos;
+	}
+
+	/** Six tets per cube of an n x n x n grid, each running from the cube's low corner to its high
+	 * corner one axis at a time, so that neighbouring cubes share their faces. */
+	private static int[] gridTets(int n) {
+		int[][] axisOrders = {{0, 1, 2}, {0, 2, 1}, {1, 0, 2}, {1, 2, 0}, {2, 0, 1}, {2, 1, 0}};
+		int[] step = {1, n + 1, (n + 1) * (n + 1)};
+		int[] tets = new int[4 * 6 * n * n * n];
+		int t = 0;
+		for (int z = 0; z < n; z++) {
+			for (int y = 0; y < n; y++) {
+				for (int x = 0; x < n; x++) {
+					int base = x + y * step[1] + z * step[2];
+					for (int p = 0; p < 6; p++) {
+						int[] order = axisOrders[p];
+						int v0 = base;
+						int v1 = v0 + step[order[0]];
+						int v2 = v1 + step[order[1]];
+						int v3 = v2 + step[order[2]];
+						//even axis orders come out inverted; swap two verts to keep faces wound outwards
+						boolean even = (p == 0 || p == 3 || p == 4);
+						tets[t++] = v0;
+						tets[t++] = even ? v2 : v1;
+						tets[t++] = even ? v1 : v2;
+						tets[t++] = v3;
+					}
+				}
+			}
+		}
+		return tets;
+	}
+}
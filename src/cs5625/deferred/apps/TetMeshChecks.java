@@ -0,0 +1,213 @@
+package cs5625.deferred.apps;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import javax.vecmath.Vector3f;
+
+import procedural.Heightmesh;
+
+import cs5625.deferred.materials.Material;
+import cs5625.deferred.scenegraph.Solid;
+import cs5625.deferred.scenegraph.TetMesh;
+
+/** Command line regression checks for TetMesh editing.
+ *
+ * Each check builds a small planet, edits it the way the planet scene controller does, and
+ * reports whether the mesh came out as expected. Exits with status 1 if any check fails.
+ *
+ * Usage: TetMeshChecks
+ */
+public class TetMeshChecks {
+	private static int failures = 0;
+
+	public static void main(String[] args) {
+		check("carving the anchor away keeps the planet", carveAnchor());
+		check("a carve and the islands it cuts off undo as one step", undoIslands());
+		check("corrupt snapshots fail to load with an IOException", corruptSnapshots());
+		check("a crater carved before a save can be filled after a load", fillAfterLoad());
+		check("setting materials keeps the chunk grid", chunksAfterSetMats());
+		check("undoing and redoing a carve uses no new slots", undoRedoSlots());
+		check("a union with a sphere off the planet adds new tets", unionOutside());
+
+		System.out.println(failures == 0 ? "all checks passed" : failures + " check(s) failed");
+		if (failures > 0) System.exit(1);
+	}
+
+	/** Print the result of one check; problem is null if it passed. */
+	private static void check(String name, String problem) {
+		System.out.println((problem == null ? "ok\t" : "FAILED\t") + name + (problem == null ? "" : ": " + problem));
+		if (problem != null) failures++;
+	}
+
+	private static TetMesh planet() {
+		Heightmesh hm = new Heightmesh();
+		hm.createIcosa();
+		hm.subdivide(3, true);
+		hm.scale(20.0f, 0.0f);
+		return hm.getTetmesh();
+	}
+
+	/** Carve a shaft from the surface down through the center vertex, deleting islands after each
+	 * carve as the controller does. The planet must never be reported as an island of itself.
+	 */
+	private static String carveAnchor() {
+		TetMesh mesh = planet();
+		int start = mesh.getTetCount();
+		for (float depth = 24; depth >= -6; depth -= 2) {
+			mesh.carveSphere(new Vector3f(0, 0, depth), 3);
+			int live = mesh.getTetCount(), islands = 0;
+			for (int i = 0; i < mesh.getIslands().size(); i++) {
+				islands += mesh.getIslands().get(i).size();
+			}
+			if (live > 0 && islands >= live)
+				return "all " + live + " live tets reported as islands at depth " + depth;
+			mesh.deleteIslands();
+		}
+		if (mesh.getTetCount() < start / 2)
+			return "only " + mesh.getTetCount() + " of " + start + " tets left";
+		return null;
+	}
+
+	/** Cut the cap off the planet with a thin slab, delete it as an island, and undo once:
+	 * both the cap and the slab must come back. Redo must take both away again.
+	 */
+	private static String undoIslands() {
+		TetMesh mesh = planet();
+		int start = mesh.getTetCount();
+		mesh.carveBox(new Vector3f(-30, -30, 12), new Vector3f(30, 30, 13));
+		if (mesh.getIslands().size() == 0)
+			return "the slab cut off no islands";
+		mesh.deleteIslands();
+		int edited = mesh.getTetCount();
+		if (!mesh.undo() || mesh.getTetCount() != start)
+			return "one undo left " + mesh.getTetCount() + " of " + start + " tets";
+		if (mesh.canUndo())
+			return "more than one undo step";
+		if (!mesh.redo() || mesh.getTetCount() != edited)
+			return "redo left " + mesh.getTetCount() + " tets, not " + edited;
+		return null;
+	}
+
+	/** Save a planet, then damage a tet vertex, a tet face and the file's length in turn: each
+	 * damaged file must fail to load with an IOException, not any other exception.
+	 */
+	private static String corruptSnapshots() {
+		try {
+			TetMesh mesh = planet();
+			File file = File.createTempFile("planet", ".tetmesh");
+			file.deleteOnExit();
+			String path = file.getPath();
+			long verts = mesh.getVertCount(), tets = mesh.getTetCount(), faces = mesh.getFaceCount();
+			long tetVerts = 4 * (8 + 3 * verts), tetFaces = tetVerts + 4 * (5 * tets + 5 * faces);
+			long[] offsets = {tetVerts, tetFaces, -1};
+			for (long offset : offsets) {
+				mesh.save(path);
+				RandomAccessFile raf = new RandomAccessFile(path, "rw");
+				try {
+					if (offset == -1) {
+						raf.setLength(raf.length() - 4);
+					}
+					else {
+						raf.seek(offset);
+						raf.writeInt(Integer.reverseBytes(Integer.MAX_VALUE)); //snapshots are little-endian
+					}
+				}
+				finally {
+					raf.close();
+				}
+				try {
+					TetMesh.load(path);
+					return "loaded a snapshot damaged at " + offset;
+				}
+				catch (IOException e) {
+					//as expected
+				}
+			}
+			return null;
+		}
+		catch (Exception e) {
+			return e.toString();
+		}
+	}
+
+	/** Carve a crater, save and load the planet, and fill the crater back in: every carved tet must
+	 * come back.
+	 */
+	private static String fillAfterLoad() {
+		try {
+			TetMesh mesh = planet();
+			int start = mesh.getTetCount();
+			Vector3f center = new Vector3f(0, 0, 20);
+			mesh.carveSphere(center, 5);
+			File file = File.createTempFile("planet", ".tetmesh");
+			file.deleteOnExit();
+			mesh.save(file.getPath());
+			TetMesh loaded = TetMesh.load(file.getPath());
+			loaded.fillSphere(center, 5);
+			if (loaded.getTetCount() != start)
+				return "filled back to " + loaded.getTetCount() + " of " + start + " tets";
+			return null;
+		}
+		catch (IOException e) {
+			return e.toString();
+		}
+	}
+
+	/** Set the materials (as the controller does after building the planet) and rebuild the chunks:
+	 * the faces must spread over as many chunks as before.
+	 */
+	private static String chunksAfterSetMats() {
+		TetMesh mesh = planet();
+		int before = occupiedChunks(mesh);
+		mesh.setMats(new ArrayList<Material>());
+		mesh.setChunkDepth(3);
+		int after = occupiedChunks(mesh);
+		if (after != before)
+			return after + " chunks occupied, not " + before;
+		return null;
+	}
+
+	private static int occupiedChunks(TetMesh mesh) {
+		int occupied = 0;
+		for (int level : mesh.getChunkLevels()) {
+			if (level != -1) occupied++;
+		}
+		return occupied;
+	}
+
+	/** Carve a crater, then undo and redo it many times: the tet and face slots in use must not grow. */
+	private static String undoRedoSlots() {
+		TetMesh mesh = planet();
+		mesh.carveSphere(new Vector3f(0, 0, 20), 5);
+		int tets = mesh.getTetSlotCount(), faces = mesh.getFaceSlotCount(), live = mesh.getTetCount();
+		for (int i = 0; i < 50; i++) {
+			mesh.undo();
+			mesh.redo();
+		}
+		if (mesh.getTetCount() != live)
+			return mesh.getTetCount() + " live tets, not " + live;
+		if (mesh.getTetSlotCount() != tets || mesh.getFaceSlotCount() != faces)
+			return "slots grew from " + tets + " tets, " + faces + " faces to " + mesh.getTetSlotCount() + ", " + mesh.getFaceSlotCount();
+		return null;
+	}
+
+	/** Union a sphere that sticks out of the planet's surface: new tets must fill the part outside the
+	 * planet, and one undo must take them all away again.
+	 */
+	private static String unionOutside() {
+		TetMesh mesh = planet();
+		int start = mesh.getTetCount();
+		Vector3f center = new Vector3f(0, 0, 24), min = new Vector3f(-4, -4, 20), max = new Vector3f(4, 4, 28);
+		int added = mesh.union(new Solid.Sphere(center, 4), min, max, 0.5f, 0);
+		if (added == 0)
+			return "no tets added";
+		if (mesh.getTetCount() != start + added)
+			return mesh.getTetCount() + " tets after adding " + added + " to " + start;
+		if (!mesh.undo() || mesh.getTetCount() != start)
+			return "undo left " + mesh.getTetCount() + " of " + start + " tets";
+		return null;
+	}
+}
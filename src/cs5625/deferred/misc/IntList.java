@@ -0,0 +1,103 @@
+package cs5625.deferred.misc;
+
+import java.util.Arrays;
+
+/** A growable list of primitive ints, used where an ArrayList<Integer> would box every element. */
+public class IntList {
+	private int[] data;
+	private int size;
+
+	/** A new empty IntList. */
+	public IntList() {
+		this(8);
+	}
+
+	/** A new empty IntList with room for capacity ints before it has to grow. */
+	public IntList(int capacity) {
+		data = new int[Math.max(capacity, 1)];
+		size = 0;
+	}
+
+	/** An IntList holding the first size ints of data, which it takes over rather than copies. */
+	public IntList(int[] data, int size) {
+		this.data = (data.length > 0 ? data : new int[1]);
+		this.size = size;
+	}
+
+	/** Number of ints in the list. */
+	public int size() {
+		return size;
+	}
+
+	/** Return the int at index i. */
+	public int get(int i) {
+		return data[i];
+	}
+
+	/** Overwrite the int at index i. */
+	public void set(int i, int value) {
+		data[i] = value;
+	}
+
+	/** Append value to the end of the list. */
+	public void add(int value) {
+		if (size == data.length) {
+			data = Arrays.copyOf(data, data.length * 2);
+		}
+		data[size++] = value;
+	}
+
+	/** Remove and return the int at index i, shifting later entries down. */
+	public int remove(int i) {
+		int value = data[i];
+		System.arraycopy(data, i + 1, data, i, size - i - 1);
+		size--;
+		return value;
+	}
+
+	/** Remove the first occurrence of value, returning true if it was found. */
+	public boolean removeValue(int value) {
+		int i = indexOf(value);
+		if (i == -1) return false;
+		remove(i);
+		return true;
+	}
+
+	/** Remove and return the last int in the list. */
+	public int pop() {
+		return data[--size];
+	}
+
+	/** Index of the first occurrence of value, or -1 if it is not in the list. */
+	public int indexOf(int value) {
+		for (int i = 0; i < size; i++) {
+			if (data[i] == value) return i;
+		}
+		return -1;
+	}
+
+	/** True if value is in the list. */
+	public boolean contains(int value) {
+		return indexOf(value) != -1;
+	}
+
+	/** Empty the list, keeping its storage. */
+	public void clear() {
+		size = 0;
+	}
+
+	/** A copy of the list contents, trimmed to size. */
+	public int[] toArray() {
+		return Arrays.copyOf(data, size);
+	}
+
+	/** The backing array; only the first size() entries are meaningful. */
+	public int[] array() {
+		return data;
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(toArray());
+	}
+}
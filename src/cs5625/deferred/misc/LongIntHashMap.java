@@ -0,0 +1,130 @@
+package cs5625.deferred.misc;
+
+import java.util.Arrays;
+
+/** An open-addressing hash map from primitive longs to primitive ints.
+ *
+ * Uses linear probing with backward-shift deletion, so there are no tombstones
+ * and lookups stay short after many removes. The key -1 is reserved to mark
+ * empty slots, and get() returns -1 for a missing key.
+ */
+public class LongIntHashMap {
+	private static final long EMPTY = -1L;
+
+	private long[] keys;
+	private int[] values;
+	private int mask;
+	private int size;
+
+	/** A new empty map. */
+	public LongIntHashMap() {
+		this(16);
+	}
+
+	/** A new empty map sized to hold expected entries without growing. */
+	public LongIntHashMap(int expected) {
+		int cap = 16;
+		while (cap < expected * 2) cap <<= 1;
+		allocate(cap);
+	}
+
+	private void allocate(int cap) {
+		keys = new long[cap];
+		values = new int[cap];
+		Arrays.fill(keys, EMPTY);
+		mask = cap - 1;
+	}
+
+	private int slot(long key) {
+		//murmur3 finalizer, so that packed keys with few varying bits still spread out
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int)key & mask;
+	}
+
+	/** Number of entries in the map. */
+	public int size() {
+		return size;
+	}
+
+	/** The value stored for key, or -1 if there is none. */
+	public int get(long key) {
+		for (int i = slot(key); ; i = (i + 1) & mask) {
+			if (keys[i] == key) return values[i];
+			if (keys[i] == EMPTY) return -1;
+		}
+	}
+
+	/** True if key has a value in the map. */
+	public boolean containsKey(long key) {
+		return get(key) != -1;
+	}
+
+	/** Store value for key, returning the previous value or -1 if there was none. */
+	public int put(long key, int value) {
+		if (key == EMPTY) throw new IllegalArgumentException("-1 is reserved as the empty key");
+		if (2 * (size + 1) > keys.length) grow();
+		for (int i = slot(key); ; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				int old = values[i];
+				values[i] = value;
+				return old;
+			}
+			if (keys[i] == EMPTY) {
+				keys[i] = key;
+				values[i] = value;
+				size++;
+				return -1;
+			}
+		}
+	}
+
+	/** Remove key from the map, returning its value or -1 if it was not there. */
+	public int remove(long key) {
+		int i = slot(key);
+		while (keys[i] != key) {
+			if (keys[i] == EMPTY) return -1;
+			i = (i + 1) & mask;
+		}
+		int old = values[i];
+		size--;
+
+		//shift later entries of the probe run back into the hole
+		int hole = i;
+		for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+			int home = slot(keys[j]);
+			//move j into the hole unless its home lies cyclically in (hole, j]
+			if (hole <= j ? (home <= hole || home > j) : (home <= hole && home > j)) {
+				keys[hole] = keys[j];
+				values[hole] = values[j];
+				hole = j;
+			}
+		}
+		keys[hole] = EMPTY;
+		return old;
+	}
+
+	/** Remove all entries, keeping the table's storage. */
+	public void clear() {
+		Arrays.fill(keys, EMPTY);
+		size = 0;
+	}
+
+	/** Number of slots in the table (for memory accounting). */
+	public int capacity() {
+		return keys.length;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(oldKeys.length * 2);
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) put(oldKeys[i], oldValues[i]);
+		}
+	}
+}
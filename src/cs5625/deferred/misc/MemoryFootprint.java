@@ -0,0 +1,118 @@
+package cs5625.deferred.misc;
+
+/** How much heap a mesh uses, split into parts, along with its element counts.
+ *
+ * Byte counts are estimates for a 64-bit JVM with compressed references (12 byte object
+ * headers, 16 byte array headers, 4 byte references, objects padded to 8 bytes), counting
+ * arrays at their capacity rather than the part in use. They are meant for comparing meshes
+ * and catching regressions, not for exact accounting.
+ */
+public class MemoryFootprint {
+	/** The parts a mesh's memory is split into. */
+	public enum Part {
+		VERTICES, //positions, normals, texture coordinates and per-vertex bookkeeping
+		FACES, //face records, and the lookup from verts to faces
+		TETS, //tet records
+		ADJACENCY, //links between neighbouring elements
+		SPATIAL_INDEX, //trees and grids for spatial queries
+		RENDER_BUFFERS, //data kept for drawing
+		HISTORY //edit history and pending work lists
+	}
+
+	/** Something that can report its memory footprint. */
+	public interface Source {
+		MemoryFootprint getMemoryFootprint();
+	}
+
+	public static final int OBJECT_HEADER = 12, ARRAY_HEADER = 16, REFERENCE = 4;
+
+	private final long[] bytes = new long[Part.values().length];
+	private final int vertexCount, faceCount, tetCount;
+
+	/** An empty footprint for a mesh with the given numbers of live elements. */
+	public MemoryFootprint(int vertexCount, int faceCount, int tetCount) {
+		this.vertexCount = vertexCount;
+		this.faceCount = faceCount;
+		this.tetCount = tetCount;
+	}
+
+	/** Count bytes more against part. */
+	public void add(Part part, long bytes) {
+		this.bytes[part.ordinal()] += bytes;
+	}
+
+	/** Bytes used by part. */
+	public long getBytes(Part part) {
+		return bytes[part.ordinal()];
+	}
+
+	/** Bytes used by all parts. */
+	public long getTotalBytes() {
+		long total = 0;
+		for (long b : bytes) {
+			total += b;
+		}
+		return total;
+	}
+
+	public int getVertexCount() {
+		return vertexCount;
+	}
+
+	public int getFaceCount() {
+		return faceCount;
+	}
+
+	public int getTetCount() {
+		return tetCount;
+	}
+
+	/** One line summary, in kilobytes. */
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		s.append(vertexCount).append(" verts, ").append(faceCount).append(" faces, ").append(tetCount).append(" tets:");
+		for (Part p : Part.values()) {
+			s.append(' ').append(p.name().toLowerCase()).append(' ').append(getBytes(p) / 1024).append("k");
+		}
+		return s.append(", total ").append(getTotalBytes() / 1024).append("k").toString();
+	}
+
+	/** Size of an object with fieldBytes bytes of fields. */
+	public static long object(int fieldBytes) {
+		return align(OBJECT_HEADER + fieldBytes);
+	}
+
+	/** Size of an array of length elements of elementBytes bytes each. */
+	public static long array(int length, int elementBytes) {
+		return align(ARRAY_HEADER + (long)length * elementBytes);
+	}
+
+	public static long of(int[] a) {
+		return a == null ? 0 : array(a.length, 4);
+	}
+
+	public static long of(long[] a) {
+		return a == null ? 0 : array(a.length, 8);
+	}
+
+	public static long of(float[] a) {
+		return a == null ? 0 : array(a.length, 4);
+	}
+
+	public static long of(boolean[] a) {
+		return a == null ? 0 : array(a.length, 1);
+	}
+
+	public static long of(IntList list) {
+		return list == null ? 0 : object(REFERENCE + 4) + of(list.array());
+	}
+
+	public static long of(LongIntHashMap map) {
+		return map == null ? 0 : object(2 * REFERENCE + 8) + array(map.capacity(), 8) + array(map.capacity(), 4);
+	}
+
+	private static long align(long size) {
+		return (size + 7) & ~7L;
+	}
+}
@@ -0,0 +1,16 @@
+package cs5625.deferred.misc;
+
+/** JMX view of a mesh's MemoryFootprint, see MemoryFootprintMonitor. Reads return the footprint as of the mesh's last MemoryFootprintMonitor.update(). */
+public interface MemoryFootprintMXBean {
+	long getVertexBytes();
+	long getFaceBytes();
+	long getTetBytes();
+	long getAdjacencyBytes();
+	long getSpatialIndexBytes();
+	long getRenderBufferBytes();
+	long getHistoryBytes();
+	long getTotalBytes();
+	int getVertexCount();
+	int getFaceCount();
+	int getTetCount();
+}
@@ -0,0 +1,113 @@
+package cs5625.deferred.misc;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import cs5625.deferred.misc.MemoryFootprint.Part;
+
+/** Publishes a mesh's memory footprint over JMX, as cs5625.deferred:type=MemoryFootprint,name=<name>.
+ *
+ * Meshes are not safe to measure while they are being edited, so the mesh is never measured
+ * from JMX's threads. Instead the thread that edits it calls update() after each edit, and
+ * attribute reads return the footprint from the last update (or from when the monitor was made).
+ */
+public class MemoryFootprintMonitor implements MemoryFootprintMXBean {
+	private final MemoryFootprint.Source source;
+	private volatile MemoryFootprint footprint; //as of the last update()
+	private ObjectName objectName; //null unless registered
+
+	/** Make a monitor of source, measuring it once; call on the thread that edits source. */
+	public MemoryFootprintMonitor(MemoryFootprint.Source source) {
+		this.source = source;
+		update();
+	}
+
+	/** Register a monitor of source with the platform MBean server under name, and return it.
+	 * Call on the thread that edits source.
+	 */
+	public static MemoryFootprintMonitor register(String name, MemoryFootprint.Source source) throws JMException {
+		ObjectName objectName = new ObjectName("cs5625.deferred:type=MemoryFootprint,name=" + ObjectName.quote(name));
+		MemoryFootprintMonitor monitor = new MemoryFootprintMonitor(source);
+		ManagementFactory.getPlatformMBeanServer().registerMBean(monitor, objectName);
+		monitor.objectName = objectName;
+		return monitor;
+	}
+
+	/** The name this monitor was registered under, or null if it is not registered. */
+	public ObjectName getObjectName() {
+		return objectName;
+	}
+
+	/** Remove this monitor, if it was added by register(). */
+	public void unregister() throws JMException {
+		if (objectName != null)
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		objectName = null;
+	}
+
+	/** Measure the source again and publish the result to JMX. Call on the thread that edits the source. */
+	public void update() {
+		footprint = source.getMemoryFootprint();
+	}
+
+	private long bytes(Part part) {
+		return footprint.getBytes(part);
+	}
+
+	@Override
+	public long getVertexBytes() {
+		return bytes(Part.VERTICES);
+	}
+
+	@Override
+	public long getFaceBytes() {
+		return bytes(Part.FACES);
+	}
+
+	@Override
+	public long getTetBytes() {
+		return bytes(Part.TETS);
+	}
+
+	@Override
+	public long getAdjacencyBytes() {
+		return bytes(Part.ADJACENCY);
+	}
+
+	@Override
+	public long getSpatialIndexBytes() {
+		return bytes(Part.SPATIAL_INDEX);
+	}
+
+	@Override
+	public long getRenderBufferBytes() {
+		return bytes(Part.RENDER_BUFFERS);
+	}
+
+	@Override
+	public long getHistoryBytes() {
+		return bytes(Part.HISTORY);
+	}
+
+	@Override
+	public long getTotalBytes() {
+		return footprint.getTotalBytes();
+	}
+
+	@Override
+	public int getVertexCount() {
+		return footprint.getVertexCount();
+	}
+
+	@Override
+	public int getFaceCount() {
+		return footprint.getFaceCount();
+	}
+
+	@Override
+	public int getTetCount() {
+		return footprint.getTetCount();
+	}
+}
@@ -1,8 +1,11 @@
 package cs5625.deferred.rendering;
 
+import java.nio.Buffer;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 
 import javax.media.opengl.GL2;
 import javax.media.opengl.GLAutoDrawable;
@@ -13,6 +16,8 @@ import javax.vecmath.Matrix4f;
 import javax.vecmath.Point3f;
 import javax.vecmath.Quat4f;
 
+import com.jogamp.common.nio.Buffers;
+
 import cs5625.deferred.materials.Material;
 import cs5625.deferred.materials.Texture.Datatype;
 import cs5625.deferred.materials.Texture.Format;
@@ -77,6 +82,9 @@ public class Renderer
 	 * the Material classes themselves allows the shaders to be local to the renderer and the OpenGL 
 	 * context, which is appropriate. */
 	private HashMap<Class<? extends Material>, ShaderProgram> mShaderCache = new HashMap<Class<? extends Material>, ShaderProgram>();
+	
+	/* Vertex buffer objects holding the batch data of meshes with static batch data, by mesh and buffer. */
+	private IdentityHashMap<Mesh, IdentityHashMap<Buffer, Integer>> mMeshBuffers = new IdentityHashMap<Mesh, IdentityHashMap<Buffer, Integer>>();
 
 	/* The "ubershader" used for performing deferred shading on the gbuffer, 
 	 * and the silhouette shader to compute edges for toon rendering. */
@@ -582,8 +590,21 @@ public class Renderer
 		/* Render this object as appropriate for its type. */
 		if (obj instanceof Geometry)
 		{
+			/* Let meshes pick their level of detail for the view camera (shadow maps draw whatever it picked). */
+			Point3f eye = null;
+			float pixelScale = 0.0f;
+			if (!camera.getIsShadowMapCamera())
+			{
+				eye = obj.transformPointFromWorldSpace(camera.getWorldspacePosition());
+				pixelScale = mViewportHeight / (2.0f * (float)Math.tan(Math.toRadians(camera.getFOV()) / 2.0));
+			}
+			
 			for (Mesh mesh : ((Geometry)obj).getMeshes())
 			{
+				if (eye != null)
+				{
+					mesh.selectLevelOfDetail(eye, pixelScale);
+				}
 				renderMesh(gl, mesh);
 			}
 		}
@@ -615,11 +636,6 @@ public class Renderer
 		gl.glPushAttrib(GL2.GL_ALL_ATTRIB_BITS);
 		gl.glPushClientAttrib((int)GL2.GL_CLIENT_ALL_ATTRIB_BITS);
 		
-		/* Activate the material. */
-		mesh.getMaterial().retrieveShader(gl, mShaderCache);
-		mesh.getMaterial().bind(gl);
-		
-			
 		/* Enable the required vertex arrays and send data. */
 		if (mesh.getVertexData() == null)
 		{
@@ -651,22 +667,43 @@ public class Renderer
 			gl.glTexCoordPointer(2, GL2.GL_FLOAT, 0, mesh.getTexCoordData());
 		}
 
-		/* Send custom vertex attributes (if any) to OpenGL. */
-		bindRequiredMeshAttributes(gl, mesh);
-		
 		//Only render front polys
 		gl.glCullFace(GL2.GL_FRONT);
 		gl.glEnable(GL2.GL_CULL_FACE);
 		
-		/* Render polygons. */
-		gl.glDrawElements(getOpenGLPrimitiveType(mesh.getVerticesPerPolygon()), 
-						  mesh.getVerticesPerPolygon() * mesh.getPolygonCount(), 
-						  GL2.GL_UNSIGNED_INT, 
-						  mesh.getPolygonData());
-				
-		/* Deactivate material and restore state. */
-		mesh.getMaterial().unbind(gl);
-
+		/* Buffers of this mesh's batches already on the GPU, and the ones drawn this time. */
+		IdentityHashMap<Buffer, Integer> oldBuffers = null, newBuffers = null;
+		if (mesh.hasStaticBatchData())
+		{
+			oldBuffers = mMeshBuffers.get(mesh);
+			newBuffers = new IdentityHashMap<Buffer, Integer>();
+		}
+		
+		/* Render each batch of polygons with its own material and vertex data. */
+		for (int batch = 0; batch < mesh.getBatchCount(); batch++)
+		{
+			IntBuffer polygons = mesh.getBatchPolygonData(batch);
+			if (polygons == null || polygons.capacity() == 0)
+			{
+				continue;
+			}
+			
+			/* Activate the material. */
+			Material material = mesh.getBatchMaterial(batch);
+			material.retrieveShader(gl, mShaderCache);
+			material.bind(gl);
+			
+			/* Send this batch's vertex data, and custom vertex attributes (if any), to OpenGL. */
+			sendBatchData(gl, mesh, batch, oldBuffers, newBuffers);
+			bindRequiredMeshAttributes(gl, mesh, material);
+			
+			/* Render polygons. */
+			drawBatch(gl, mesh, polygons, oldBuffers, newBuffers);
+			
+			/* Deactivate material. */
+			material.unbind(gl);
+		}
+		
 		
 		/* Render mesh wireframe if we're supposed to. */
 		if (mRenderWireframes && mesh.getVerticesPerPolygon() > 2)
@@ -680,13 +717,38 @@ public class Renderer
 			gl.glPolygonMode(GL2.GL_FRONT_AND_BACK, GL2.GL_LINE);
 
 			/* Render polygons. */
-			gl.glDrawElements(getOpenGLPrimitiveType(mesh.getVerticesPerPolygon()), 
-					  mesh.getVerticesPerPolygon() * mesh.getPolygonCount(), 
-					  GL2.GL_UNSIGNED_INT, 
-					  mesh.getPolygonData());					
+			for (int batch = 0; batch < mesh.getBatchCount(); batch++)
+			{
+				IntBuffer polygons = mesh.getBatchPolygonData(batch);
+				if (polygons == null || polygons.capacity() == 0)
+				{
+					continue;
+				}
+				sendBatchData(gl, mesh, batch, oldBuffers, newBuffers);
+				drawBatch(gl, mesh, polygons, oldBuffers, newBuffers);
+			}
 			
 			mWireframeMaterial.unbind(gl);
 		}
+		
+		/* Back to client-side arrays, and free the buffers of batches the mesh has since replaced. */
+		if (newBuffers != null)
+		{
+			gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+			gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);
+			gl.glVertexPointer(3, GL2.GL_FLOAT, 0, mesh.getVertexData());
+			if (oldBuffers != null)
+			{
+				for (Buffer buffer : oldBuffers.keySet())
+				{
+					if (!newBuffers.containsKey(buffer))
+					{
+						gl.glDeleteBuffers(1, new int[] {oldBuffers.get(buffer)}, 0);
+					}
+				}
+			}
+			mMeshBuffers.put(mesh, newBuffers);
+		}
 
 		/* Render marked edges (e.g. for subdiv creases), if we're supposed to and if they exist. */
 		if (mRenderWireframes && mesh.getEdgeData() != null)
@@ -709,21 +771,130 @@ public class Renderer
 		OpenGLException.checkOpenGLError(gl);
 	}
 	
+	/**
+	 * Points the vertex, normal, and texture coordinate arrays at the given batch's data. For meshes 
+	 * with static batch data the data is kept in vertex buffer objects, so only buffers not drawn 
+	 * before are uploaded (and a mesh that replaces a small part of itself re-uploads only that part).
+	 * 
+	 * @param oldBuffers The mesh's buffer objects from the last time it was drawn, or null if none.
+	 * @param newBuffers The mesh's buffer objects drawn this time, added to as buffers are sent; 
+	 *        null unless the mesh has static batch data.
+	 */
+	private void sendBatchData(GL2 gl, Mesh mesh, int batch, IdentityHashMap<Buffer, Integer> oldBuffers, 
+			IdentityHashMap<Buffer, Integer> newBuffers)
+	{
+		FloatBuffer vertices = mesh.getBatchVertexData(batch);
+		FloatBuffer normals = mesh.getBatchNormalData(batch);
+		FloatBuffer texCoords = mesh.getBatchTexCoordData(batch);
+		
+		if (newBuffers == null)
+		{
+			/* Client-side arrays; batches sharing the mesh's data keep the pointers set up in renderMesh(). */
+			if (vertices != mesh.getVertexData())
+			{
+				gl.glVertexPointer(3, GL2.GL_FLOAT, 0, vertices);
+			}
+			if (normals != null && normals != mesh.getNormalData())
+			{
+				gl.glNormalPointer(GL2.GL_FLOAT, 0, normals);
+			}
+			if (texCoords != null && texCoords != mesh.getTexCoordData())
+			{
+				gl.glTexCoordPointer(2, GL2.GL_FLOAT, 0, texCoords);
+			}
+			return;
+		}
+		
+		bindBuffer(gl, GL2.GL_ARRAY_BUFFER, vertices, oldBuffers, newBuffers);
+		gl.glVertexPointer(3, GL2.GL_FLOAT, 0, 0L);
+		
+		if (normals == null)
+		{
+			gl.glDisableClientState(GL2.GL_NORMAL_ARRAY);
+		}
+		else
+		{
+			gl.glEnableClientState(GL2.GL_NORMAL_ARRAY);
+			bindBuffer(gl, GL2.GL_ARRAY_BUFFER, normals, oldBuffers, newBuffers);
+			gl.glNormalPointer(GL2.GL_FLOAT, 0, 0L);
+		}
+		
+		if (texCoords == null)
+		{
+			gl.glDisableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+		}
+		else
+		{
+			gl.glEnableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+			bindBuffer(gl, GL2.GL_ARRAY_BUFFER, texCoords, oldBuffers, newBuffers);
+			gl.glTexCoordPointer(2, GL2.GL_FLOAT, 0, 0L);
+		}
+	}
+	
+	/**
+	 * Binds the buffer object holding `data` to `target`, first uploading it to a new buffer object 
+	 * if it isn't in `oldBuffers` or `newBuffers`. Either way, it ends up in `newBuffers`.
+	 */
+	private void bindBuffer(GL2 gl, int target, Buffer data, IdentityHashMap<Buffer, Integer> oldBuffers, 
+			IdentityHashMap<Buffer, Integer> newBuffers)
+	{
+		Integer id = newBuffers.get(data);
+		if (id == null && oldBuffers != null)
+		{
+			id = oldBuffers.get(data);
+		}
+		
+		if (id == null)
+		{
+			int[] ids = new int[1];
+			gl.glGenBuffers(1, ids, 0);
+			id = ids[0];
+			
+			int bytes = data.capacity() * (data instanceof IntBuffer ? Buffers.SIZEOF_INT : Buffers.SIZEOF_FLOAT);
+			gl.glBindBuffer(target, id);
+			gl.glBufferData(target, bytes, data.rewind(), GL2.GL_STATIC_DRAW);
+		}
+		else
+		{
+			gl.glBindBuffer(target, id);
+		}
+		newBuffers.put(data, id);
+	}
+	
+	/**
+	 * Draws a batch's polygons, from a buffer object if `newBuffers` is non-null (see `sendBatchData()`).
+	 */
+	private void drawBatch(GL2 gl, Mesh mesh, IntBuffer polygons, IdentityHashMap<Buffer, Integer> oldBuffers, 
+			IdentityHashMap<Buffer, Integer> newBuffers) throws OpenGLException
+	{
+		int type = getOpenGLPrimitiveType(mesh.getVerticesPerPolygon());
+		if (newBuffers == null)
+		{
+			gl.glDrawElements(type, polygons.capacity(), GL2.GL_UNSIGNED_INT, polygons);
+		}
+		else
+		{
+			bindBuffer(gl, GL2.GL_ELEMENT_ARRAY_BUFFER, polygons, oldBuffers, newBuffers);
+			gl.glDrawElements(type, polygons.capacity(), GL2.GL_UNSIGNED_INT, 0L);
+		}
+	}
+	
 	/**
 	 * Binds all custom vertex attributes required by a mesh's material to buffers provided
 	 * by that mesh.
 	 * 
 	 * @param gl The OpenGL state.
-	 * @param mesh All custom vertex attributes required by mesh's material and shader are bound to the 
+	 * @param mesh All custom vertex attributes required by material and its shader are bound to the 
 	 *        correspondingly-named buffers in the mesh's `vertexAttribData` map.
+	 * @param material The material (of one of the mesh's batches) about to be drawn with.
 	 *        
 	 * @throws OpenGLException If a required attribute isn't supplied by the mesh.
 	 */
-	void bindRequiredMeshAttributes(GL2 gl, Mesh mesh) throws OpenGLException
+	void bindRequiredMeshAttributes(GL2 gl, Mesh mesh, Material material) throws OpenGLException
 	{
-		ShaderProgram shader = mesh.getMaterial().getShaderProgram();
+		ShaderProgram shader = material.getShaderProgram();
 		
-		for (String attrib : mesh.getMaterial().getRequiredVertexAttributes())
+		for (String attrib : material.getRequiredVertexAttributes())
 		{
 			/* Ignore attributes which aren't actually used in the shader. */
 			int location = shader.getAttribLocation(gl, attrib);
@@ -732,6 +903,12 @@ public class Renderer
 				continue;
 			}
 			
+			/* Custom attributes are per mesh vertex, which doesn't match separate batch data. */
+			if (mesh.hasStaticBatchData())
+			{
+				throw new OpenGLException("Material requires vertex attribute '" + attrib + "', which meshes with static batch data can't supply.");
+			}
+			
 			/* Get data for this attribute from the mesh. */
 			FloatBuffer attribData = mesh.vertexAttribData.get(attrib);
 			
@@ -1096,5 +1273,14 @@ public class Renderer
 		mBloomShader.releaseGPUResources(gl);
 		mVisShader.releaseGPUResources(gl);
 		mShadowMapFBO.releaseGPUResources(gl);
+		
+		for (IdentityHashMap<Buffer, Integer> buffers : mMeshBuffers.values())
+		{
+			for (int id : buffers.values())
+			{
+				gl.glDeleteBuffers(1, new int[] {id}, 0);
+			}
+		}
+		mMeshBuffers.clear();
 	}
 }
@@ -7,6 +7,7 @@ import java.util.HashMap;
 import javax.media.opengl.GL2;
 import javax.vecmath.GMatrix;
 import javax.vecmath.GVector;
+import javax.vecmath.Point3f;
 import javax.vecmath.Vector3f;
 
 import com.jogamp.common.nio.Buffers;
@@ -320,6 +321,77 @@ public abstract class Mesh implements OpenGLResourceObject
 		mPolygonData = polys;
 	}
 
+	/**
+	 * Returns the number of draw batches in this mesh. Each batch is a range of polygons drawn 
+	 * with its own material, indexing its own vertex data (by default the mesh's). By default a 
+	 * mesh is a single batch holding all its polygons, drawn with `getMaterial()`.
+	 */
+	public int getBatchCount()
+	{
+		return 1;
+	}
+	
+	/**
+	 * Returns the polygon index buffer of the given batch, in the same format as `getPolygonData()`.
+	 */
+	public IntBuffer getBatchPolygonData(int batch)
+	{
+		return getPolygonData();
+	}
+	
+	/**
+	 * Returns the material the given batch is drawn with.
+	 */
+	public Material getBatchMaterial(int batch)
+	{
+		return getMaterial();
+	}
+
+	/**
+	 * Returns the vertex position buffer the given batch's polygons index into.
+	 */
+	public FloatBuffer getBatchVertexData(int batch)
+	{
+		return getVertexData();
+	}
+	
+	/**
+	 * Returns the vertex normal buffer of the given batch, matching `getBatchVertexData()`.
+	 */
+	public FloatBuffer getBatchNormalData(int batch)
+	{
+		return getNormalData();
+	}
+	
+	/**
+	 * Returns the texture coordinate buffer of the given batch, matching `getBatchVertexData()`.
+	 */
+	public FloatBuffer getBatchTexCoordData(int batch)
+	{
+		return getTexCoordData();
+	}
+	
+	/**
+	 * Returns true if the contents of the batch buffers never change once returned: a mesh 
+	 * that changes a batch returns new buffer objects for it instead. The renderer can then keep 
+	 * each buffer on the GPU and upload only the ones it has not seen before. False by default.
+	 */
+	public boolean hasStaticBatchData()
+	{
+		return false;
+	}
+	
+	/**
+	 * Called before the mesh is drawn, so that meshes with levels of detail can pick which to draw. 
+	 * Does nothing by default.
+	 * 
+	 * @param eye The eye position, in the mesh's space.
+	 * @param pixelScale Pixels covered on screen by something one unit across, one unit from the eye.
+	 */
+	public void selectLevelOfDetail(Point3f eye, float pixelScale)
+	{
+	}
+
 	/**
 	 * Returns the edge index buffer. Format is the same as the polygon buffer (with only
 	 * 2 indices per edge, of course). The edge buffer is not automatically initialized to all 
@@ -0,0 +1,98 @@
+package cs5625.deferred.scenegraph;
+
+import javax.vecmath.Vector3f;
+
+/** A solid for TetMesh CSG, given as a signed distance function: negative inside, positive outside.
+ *
+ * Only the sign is needed to classify tets, so solids without a cheap distance (such as
+ * TetMesh.asSolid()) may return any value of the right sign. eval() is called from several
+ * threads at once and must not change any state.
+ */
+public interface Solid {
+	/** Signed distance from (x, y, z) to the solid's surface, negative inside. */
+	float eval(float x, float y, float z);
+
+	/** A sphere. */
+	public static class Sphere implements Solid {
+		private final float cx, cy, cz, radius;
+
+		public Sphere(Vector3f center, float radius) {
+			this.cx = center.x;
+			this.cy = center.y;
+			this.cz = center.z;
+			this.radius = radius;
+		}
+
+		@Override
+		public float eval(float x, float y, float z) {
+			float dx = x - cx, dy = y - cy, dz = z - cz;
+			return (float)Math.sqrt(dx * dx + dy * dy + dz * dz) - radius;
+		}
+	}
+
+	/** All points within radius of the segment from a to b. */
+	public static class Capsule implements Solid {
+		private final float ax, ay, az, abx, aby, abz, abLen2, radius;
+
+		public Capsule(Vector3f a, Vector3f b, float radius) {
+			this.ax = a.x;
+			this.ay = a.y;
+			this.az = a.z;
+			this.abx = b.x - a.x;
+			this.aby = b.y - a.y;
+			this.abz = b.z - a.z;
+			this.abLen2 = abx * abx + aby * aby + abz * abz;
+			this.radius = radius;
+		}
+
+		@Override
+		public float eval(float x, float y, float z) {
+			float px = x - ax, py = y - ay, pz = z - az;
+			//closest point on the segment, as a fraction of the way from a to b
+			float h = (abLen2 > 0 ? (px * abx + py * aby + pz * abz) / abLen2 : 0);
+			h = Math.max(0, Math.min(1, h));
+			px -= h * abx;
+			py -= h * aby;
+			pz -= h * abz;
+			return (float)Math.sqrt(px * px + py * py + pz * pz) - radius;
+		}
+	}
+
+	/** An axis-aligned box from min to max. */
+	public static class Box implements Solid {
+		private final float cx, cy, cz, hx, hy, hz;
+
+		public Box(Vector3f min, Vector3f max) {
+			this.cx = (min.x + max.x) / 2;
+			this.cy = (min.y + max.y) / 2;
+			this.cz = (min.z + max.z) / 2;
+			this.hx = (max.x - min.x) / 2;
+			this.hy = (max.y - min.y) / 2;
+			this.hz = (max.z - min.z) / 2;
+		}
+
+		@Override
+		public float eval(float x, float y, float z) {
+			float qx = Math.abs(x - cx) - hx, qy = Math.abs(y - cy) - hy, qz = Math.abs(z - cz) - hz;
+			float ox = Math.max(qx, 0), oy = Math.max(qy, 0), oz = Math.max(qz, 0);
+			float outside = (float)Math.sqrt(ox * ox + oy * oy + oz * oz);
+			float inside = Math.min(Math.max(qx, Math.max(qy, qz)), 0);
+			return outside + inside;
+		}
+	}
+
+	/** The points of a that are not in b. */
+	public static class Difference implements Solid {
+		private final Solid a, b;
+
+		public Difference(Solid a, Solid b) {
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		public float eval(float x, float y, float z) {
+			return Math.max(a.eval(x, y, z), -b.eval(x, y, z));
+		}
+	}
+}
@@ -1,12 +1,25 @@
 package cs5625.deferred.scenegraph;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 import javax.media.opengl.GL2;
 import javax.media.opengl.glu.GLU;
@@ -20,47 +33,178 @@ import com.jogamp.common.nio.Buffers;
 import cs5625.deferred.materials.BlinnPhongMaterial;
 import cs5625.deferred.materials.Material;
 import cs5625.deferred.materials.Texture2D;
+import cs5625.deferred.misc.IntList;
+import cs5625.deferred.misc.LongIntHashMap;
+import cs5625.deferred.misc.MemoryFootprint;
+import cs5625.deferred.misc.MemoryFootprint.Part;
 import cs5625.deferred.misc.OpenGLResourceObject;
 
-/** A tetrahedral mesh object. */
-public class TetMesh extends Mesh implements OpenGLResourceObject {
-	private ArrayList<Vert> verts;
-	private ArrayList<Face> faces;
-	private ArrayList<Tet> tets;
+/** A tetrahedral mesh object.
+ *
+ * Verts, faces and tets are stored in flat primitive arrays and referred to by index,
+ * so a mesh costs a handful of arrays rather than an object (and a few vectors) per element.
+ * Deleted faces and tets keep their slot, marked by a -1 in their first tet/vertex entry.
+ * Faces are found by their (unordered) vertex triple through a hashed face registry.
+ */
+public class TetMesh extends Mesh implements OpenGLResourceObject, MemoryFootprint.Source {
+	/* Face keys pack three 21 bit vertex indices into one long. */
+	private static final int MAX_VERTS = 1 << 21;
+
+	/* Vertex positions {x, y, z}, and per vertex the number of faces using it.
+	 * vertPos, normArr and texArr double as the render buffers, so they have spare capacity. */
+	private float[] vertPos;
+	private int[] vertFaceCount;
+	/* Per vertex, the sum of the unit normals of the shown faces around it, and how many there are.
+	 * normArr holds the normalized sums, so an edit only renormalizes the verts it touches. */
+	private float[] normSum;
+	private int[] vertShownCount;
+	private int vertCount;
+
+	/* Tet vertices {v0, v1, v2, v3}, faces {f0, f1, f2, f3} and material.
+	 * A deleted tet has f0 == -1 but keeps its verts until it is filled back in (then v0 == -1 too). */
+	private int[] tetVerts, tetFaces, tetMats;
+	private int[] tetNeighbors; //tet across each of a tet's four faces, -1 at a boundary (or for a dead tet)
+	private int[] tetMark; //visit stamps for region queries
+	private int markStamp;
+	private int tetCount, liveTetCount;
+
+	/* Face vertices {v0, v1, v2} (wound outwards from t0), tets {t0, t1}, and bounds
+	 * {minX, minY, minZ, maxX, maxY, maxZ}. */
+	private int[] faceVerts, faceTets;
+	private float[] faceBounds;
+	/* Drawn sides of faces. Side 2 * f + s faces out of tet faceTets[2 * f + s], wound as f for s = 0 and
+	 * reversed for s = 1. A drawn side has a slot in the batch of its face's chunk and its tet's material,
+	 * and is lit if it adds its normal into the vertex normals; sideSlot is -1 for a side that is not drawn. */
+	private int[] sideSlot, sideBatch;
+	private boolean[] sideLit;
+	private int faceCount, liveFaceCount;
+	private LongIntHashMap faceRegistry; //sorted vertex triple -> live face; use registry() to read it
+	private ForkJoinTask<LongIntHashMap> pendingRegistry; //registry still being built in the background after setTets or load()
+
 	private ArrayList<Material> mats;
-	private ArrayList<Face> interfaces;
-	private ArrayList<Face> boundaries;
-	private ArrayList<Face> partiallyCulled;
-	private ArrayList<Integer> culledPolygons;
-	private ArrayList<Integer> culledVerts;
-	private float[] vtx, normArr, texArr;
-	private int[] arr; 
-	private Vector3f[] norms; 
-
-	private TreeNode root;
-	private int kdCutoff = 5;
+	private boolean[] matTransparent; //per material index, see setMatTransparent
+	private ArrayList<Batch> batches; //the drawn sides of each chunk and material index
+	/* The surface is split into chunks, the cells of a grid with 1 << chunkDepth cells a side over the
+	 * mesh's bounds (chunkMin, cells of chunkCell), by the centers of the faces' bounding boxes. Each
+	 * chunk has its own vertex buffers, rebuilt only when an edit touches it. */
+	private int chunkDepth = 3;
+	private float[] chunkMin = new float[3], chunkCell = new float[3];
+	private Chunk[] chunks = new Chunk[0]; //null for empty cells
+	private float faceExtent; //largest side of the bounding box of any face drawn, see markChunksAround
+	/* Level of detail: level l > 0 of a chunk merges the verts in each cell of a grid with cells
+	 * lodCell * 2^l a side, see simplifyChunk; the level drawn is picked by selectLevelOfDetail. */
+	private float lodCell; //mean largest side of the drawn faces' bounding boxes
+	private float maxScreenError = 1.0f; //pixels
+	private IntList culledVerts;
+	private IntList removedTets; //deleted tets, which keep their verts (and slots) for fill brushes and undo
+	private IntList freeFaces; //dead face slots for addFace to reuse
+	private IntList freedFaces; //faces removed since the last commit, free once it has culled them
+	private IntList dirtyFaces; //faces whose boundary status may have changed since the polygon slots were last updated
+	private boolean[] faceDirty;
+	private int editDepth; //nesting depth of beginEdit()/commit()
+	private int anchorVert = -1; //tets using this vertex hold the mesh in place, see findIslands
+	private int anchorTets; //live tets using anchorVert
+	private IntList islandSeeds; //live neighbors of tets removed since the last commit
+	private ArrayList<IntList> islands; //tet sets cut off from the anchor by the last commit
+	private boolean islandsInStep; //the last commit that found islands opened the newest undo step
+
+	/* Undo and redo journals: records of JOURNAL_RECORD ints {op, v0, v1, v2, v3, mat, slot}, in steps of
+	 * one commit each (the Steps lists hold where each step's records start). */
+	private static final int JOURNAL_RECORD = 7, JOURNAL_ADD = 0, JOURNAL_REMOVE = 1;
+	private IntList undoRecords, undoSteps, redoRecords, redoSteps;
+	private int stepStart; //size of undoRecords when the outermost beginEdit() was called
+	private boolean replaying; //undo or redo is applying records, which must not be journaled
+	private float[] normArr, texArr;
+
+	private static final ForkJoinPool pool = new ForkJoinPool(); //shared by the parallel builds and CSG
+	private static final int CLASSIFY_GRAIN = 4096; //tets per CSG classification task
+	/** The six tets union() splits each lattice cube into, by corner (bit 0 is +x, bit 1 +y, bit 2 +z).
+	 * They all share the diagonal from corner 0 to 7, so neighbouring cubes' tets meet face to face,
+	 * and each is listed with positive orientation, as setTets expects. */
+	private static final int[] LATTICE_TETS = {0, 1, 3, 7, 1, 0, 5, 7, 2, 0, 3, 7, 0, 2, 6, 7, 0, 4, 5, 7, 4, 0, 6, 7};
+	private static final int NEIGHBOR_GRAIN = 16384; //tets per neighbor-linking task
+	private static final int BUILD_GRAIN = 16384; //tets, faces or verts per task of the setTets pipeline
+	private static final int PARTITION_SIZE = 65536; //half-faces per partition when setTets finds faces
+	private static final int BVH_FORK_MIN = 4096; //faces a BVH subtree needs to be built as a task of its own
+	private static final int SAH_BINS = 16; //buckets per axis the BVH build sorts face centers into
+	private static final int MAX_MATS = 128;
+	private static final int LOD_LEVELS = 5; //levels of detail per chunk, 0 being the full surface
+	private static final int LOD_MAX_GROUPS = (1 << 12) - 1; //seam vert groups a chunk can simplify with, see lodKey
+	private static final int[] FACE_CORNERS = {0, 1, 2, 0, 3, 1, 0, 2, 3, 3, 2, 1}; //tet corners of each face, as in addTet
+
+	//the BVH over the drawn faces, laid out flat: node n has the box bvhBox[6n .. 6n + 6) (min x, y, z
+	//then max x, y, z) and bvhCount[n] faces under it. An inner node has the children bvhChild[2n]
+	//and bvhChild[2n + 1]; a leaf has bvhChild[2n] == -1 and its faces at bvhFaces[bvhChild[2n + 1] ..],
+	//in a block of bvhBlock ints so that it can grow until it is split. Builds lay nodes out in
+	//depth-first order, so walks mostly run forwards through the arrays; nodes dropped by edits are
+	//left in place (bvhDead of them) until the BVH is next built.
+	private int bvhRoot = -1;
+	private float[] bvhBox;
+	private int[] bvhChild, bvhParent, bvhCount, bvhChanges, bvhFaces;
+	private int bvhNodes, bvhFaceEnd, bvhBlock, bvhDead;
+	private int[] faceLeaf; //BVH leaf holding each drawn face
+	private int[] bvhStack; //scratch for the BVH walks...
+	private float[] bvhStackDist; //...and the distance along the line to each node on it
+	private final SlabLine bvhLine = new SlabLine(); //the line the BVH walks test boxes against
+	private int bvhLeafSize = 4;
+	private int queryNodes, queryFaces; //work done by the last line query, see getLastQueryNodesVisited
+	private int compactMinCulled = 256; //squeeze out culled slots once there are at least this many...
+	private float compactFraction = 0.25f; //...and they make up this fraction of all slots
 	private Point3f mUpperRight, mLowerLeft;
 	private float epsilon = 0.00000000001f;
 
-	
+
 	/** A new empty TetMesh. */
 	public TetMesh() {
-		verts = new ArrayList<Vert>(10);
-		faces = new ArrayList<Face>(10);
-		tets = new ArrayList<Tet>(10);
+		vertPos = new float[3 * 10];
+		normArr = new float[3 * 10];
+		normSum = new float[3 * 10];
+		vertShownCount = new int[10];
+		texArr = new float[2 * 10];
+		vertFaceCount = new int[10];
+		tetVerts = new int[4 * 10];
+		tetFaces = new int[4 * 10];
+		tetMats = new int[10];
+		tetMark = new int[10];
+		tetNeighbors = new int[4 * 10];
+		faceVerts = new int[3 * 10];
+		faceTets = new int[2 * 10];
+		sideSlot = new int[2 * 10];
+		sideBatch = new int[2 * 10];
+		sideLit = new boolean[2 * 10];
+		faceBounds = new float[6 * 10];
+		faceLeaf = new int[10];
+		bvhBox = new float[6 * 10];
+		bvhChild = new int[2 * 10];
+		bvhParent = new int[10];
+		bvhCount = new int[10];
+		bvhChanges = new int[10];
+		bvhFaces = new int[10];
+		bvhStack = new int[64];
+		bvhStackDist = new float[64];
+		bvhBlock = 2 * bvhLeafSize + 1;
+		faceRegistry = new LongIntHashMap();
 		mats = new ArrayList<Material>(2);
-		partiallyCulled = new ArrayList<Face>();
-		culledPolygons = new ArrayList<Integer>();
-		culledVerts = new ArrayList<Integer>();
+		matTransparent = new boolean[0];
+		batches = new ArrayList<Batch>();
+		culledVerts = new IntList();
+		removedTets = new IntList();
+		freeFaces = new IntList();
+		freedFaces = new IntList();
+		islandSeeds = new IntList();
+		islands = new ArrayList<IntList>();
+		undoRecords = new IntList();
+		undoSteps = new IntList();
+		redoRecords = new IntList();
+		redoSteps = new IntList();
+		dirtyFaces = new IntList();
+		faceDirty = new boolean[10];
 	}
-	
+
 	/** Set the materials of this TetMesh to the given list of materials. */
 	public void setMats(ArrayList<Material> mats) {
 		this.mats = mats;
 
-		mUpperRight = new Point3f();
-		mLowerLeft = new Point3f();
-		
 		BlinnPhongMaterial mat = new BlinnPhongMaterial();
 		try {
 			Texture2D rock = Texture2D.load(GLU.getCurrentGL().getGL2(), "textures/Rock.png");
@@ -72,508 +216,2295 @@ public class TetMesh extends Mesh implements OpenGLResourceObject {
 		mat.setSpecularColor(new Color3f(0.0f, 0.0f, 0.0f));
 
 		//mat.setDiffuseTexture(new Texture2D)
-		//root = buildKDTree();
-		//printKDTree();
 	}
-	
-	private void printKDTree() {
-		printHelper(root, 0);
+
+	/** Set whether tets of material index mat can be seen through (none can to begin with).
+	 * Where a tet meets a see-through tet of another material, the face between them is drawn from
+	 * the side of the first (rock seen through water); between tets of one material, or two opaque
+	 * ones, nothing is drawn. Rebuilds the surface, so it cannot be called inside an edit.
+	 */
+	public void setMatTransparent(int mat, boolean transparent) {
+		if (isEditing()) throw new IllegalStateException("setMatTransparent() inside an edit");
+		if (mat >= matTransparent.length)
+			matTransparent = Arrays.copyOf(matTransparent, mat + 1);
+		matTransparent[mat] = transparent;
+		if (tetCount > 0) {
+			createSurface();
+			buildBVH();
+		}
 	}
-	
-	private void printHelper(TreeNode node, int depth) {
-		if (depth > 2) return;
-		System.out.println("Depth: " + depth);
-		System.out.println("UpperRight: " + node.upperRight);
-		System.out.println("LowerLeft: " + node.lowerLeft);
-		System.out.println("Faces: " + node.faces);
-		System.out.println("^^^^^^^^^^^^^^^^^^^^^^^^^^^");
-		if (node.left != null)
-			printHelper(node.left, depth+1);
-		if (node.right != null)
-			printHelper(node.right, depth+1);
-		System.out.println("*****************************");
+
+	/** True if tets of material index mat can be seen through, see setMatTransparent. */
+	public boolean isMatTransparent(int mat) {
+		return mat < matTransparent.length && matTransparent[mat];
 	}
-	
-	private TreeNode buildKDTree() {
-		ArrayList<Face> all_faces = new ArrayList<Face>(boundaries);
-		//System.out.println("Starting KD Tree Construction...");
-		//System.out.println(all_faces.size() + " faces to be added");
-		return kdTreeHelper(all_faces, 0, mUpperRight, mLowerLeft);
-		//return kdTreeTemp(all_faces, 0, mUpperRight, mLowerLeft);
+
+	/**********************************************************
+	 * Primitive storage
+	 ********************************************************/
+
+	/** Number of vertex slots in use. */
+	public int getVertCount() {
+		return vertCount;
 	}
-	
-	private TreeNode kdTreeHelper(ArrayList<Face> f, int depth, Point3f upRight, Point3f lowLeft) {
-		if (f.size() <= 0) {
-			//System.out.println("Faces empty");
-			return null;
+
+	/** Number of tets which have not been deleted. */
+	public int getTetCount() {
+		return liveTetCount;
+	}
+
+	/** Number of faces which have not been deleted. */
+	public int getFaceCount() {
+		return liveFaceCount;
+	}
+
+	/** Number of tet slots, live or deleted: tet indices are below this. */
+	public int getTetSlotCount() {
+		return tetCount;
+	}
+
+	/** Number of face slots, live or free: face indices are below this. */
+	public int getFaceSlotCount() {
+		return faceCount;
+	}
+
+	private void ensureVertCapacity(int n) {
+		if (n <= vertFaceCount.length) return;
+		if (n > MAX_VERTS) throw new IllegalStateException("TetMesh supports at most " + MAX_VERTS + " verts");
+		int cap = Math.min(Math.max(n, vertFaceCount.length * 2), MAX_VERTS);
+		vertPos = Arrays.copyOf(vertPos, 3 * cap);
+		normArr = Arrays.copyOf(normArr, 3 * cap);
+		normSum = Arrays.copyOf(normSum, 3 * cap);
+		vertShownCount = Arrays.copyOf(vertShownCount, cap);
+		texArr = Arrays.copyOf(texArr, 2 * cap);
+		vertFaceCount = Arrays.copyOf(vertFaceCount, cap);
+	}
+
+	private void ensureTetCapacity(int n) {
+		if (n <= tetMats.length) return;
+		int cap = Math.max(n, tetMats.length * 2);
+		tetVerts = Arrays.copyOf(tetVerts, 4 * cap);
+		tetFaces = Arrays.copyOf(tetFaces, 4 * cap);
+		tetMats = Arrays.copyOf(tetMats, cap);
+		tetMark = Arrays.copyOf(tetMark, cap);
+		tetNeighbors = Arrays.copyOf(tetNeighbors, 4 * cap);
+	}
+
+	/** Make room in batch b for n polygon slots, growing geometrically. */
+	private static void ensurePolygonCapacity(Batch b, int n) {
+		if (3 * n <= b.tris.length) return;
+		b.tris = Arrays.copyOf(b.tris, 3 * Math.max(n, b.tris.length / 3 * 2));
+	}
+
+	private void ensureFaceCapacity(int n) {
+		if (n <= faceTets.length / 2) return;
+		int cap = Math.max(n, faceTets.length);
+		faceVerts = Arrays.copyOf(faceVerts, 3 * cap);
+		faceTets = Arrays.copyOf(faceTets, 2 * cap);
+		sideSlot = Arrays.copyOf(sideSlot, 2 * cap);
+		sideBatch = Arrays.copyOf(sideBatch, 2 * cap);
+		sideLit = Arrays.copyOf(sideLit, 2 * cap);
+		faceDirty = Arrays.copyOf(faceDirty, cap);
+		faceBounds = Arrays.copyOf(faceBounds, 6 * cap);
+		faceLeaf = Arrays.copyOf(faceLeaf, cap);
+	}
+
+	/** Add a vertex at (x, y, z) and return its index. */
+	private int addVert(float x, float y, float z) {
+		ensureVertCapacity(vertCount + 1);
+		int v = vertCount++;
+		vertPos[3 * v] = x;
+		vertPos[3 * v + 1] = y;
+		vertPos[3 * v + 2] = z;
+		vertFaceCount[v] = 0;
+		vertShownCount[v] = 0;
+		normSum[3 * v] = normSum[3 * v + 1] = normSum[3 * v + 2] = 0;
+		normArr[3 * v] = normArr[3 * v + 1] = 0;
+		normArr[3 * v + 2] = 1;
+		computeTexCoord(v);
+		return v;
+	}
+
+	/** Add a tet over the given verts (creating or sharing its four faces) and return its index. */
+	private int addTet(int v0, int v1, int v2, int v3, int mat) {
+		ensureTetCapacity(tetCount + 1);
+		int t = tetCount++;
+		setTet(t, v0, v1, v2, v3, mat);
+		return t;
+	}
+
+	/** Make slot t (new, or a deleted tet taken off removedTets) a live tet over the given verts. */
+	private void setTet(int t, int v0, int v1, int v2, int v3, int mat) {
+		liveTetCount++;
+		tetVerts[4 * t] = v0;
+		tetVerts[4 * t + 1] = v1;
+		tetVerts[4 * t + 2] = v2;
+		tetVerts[4 * t + 3] = v3;
+		tetMats[t] = mat;
+
+		//Create/find faces that go with the given verts
+		tetFaces[4 * t] = addFace(v0, v1, v2);
+		tetFaces[4 * t + 1] = addFace(v0, v3, v1);
+		tetFaces[4 * t + 2] = addFace(v0, v2, v3);
+		tetFaces[4 * t + 3] = addFace(v3, v2, v1);
+
+		//Set one of the two tets each face stores to be this new tet.
+		for (int i = 0; i < 4; i++) {
+			setFaceTet(tetFaces[4 * t + i], t);
+			markDirty(tetFaces[4 * t + i]);
 		}
-		else if (f.size() == 1) {
-			TreeNode node = new TreeNode();
-			node.upperRight = upRight;
-			node.lowerLeft = lowLeft;
-			node.faces = f;
-			//System.out.println("Leaf Created with one face: " + node.faces);
-			return node;
+		linkNeighbors(t);
+		if (usesVert(t, anchorVert)) anchorTets++;
+		journal(JOURNAL_ADD, t);
+	}
+
+	/** Take deleted tet t off removedTets, searching from the end, where the latest deletions are.
+	 *
+	 * @return false if it was not there.
+	 */
+	private boolean dropRemoved(int t) {
+		for (int i = removedTets.size() - 1; i >= 0; i--) {
+			if (removedTets.get(i) != t) continue;
+			for (int j = i + 1; j < removedTets.size(); j++) {
+				removedTets.set(j - 1, removedTets.get(j));
+			}
+			removedTets.pop();
+			return true;
+		}
+		return false;
+	}
+
+	/** The tet across face i (0 to 3) of tet t, or -1 if that face is a boundary. */
+	public int getNeighbor(int t, int i) {
+		return tetNeighbors[4 * t + i];
+	}
+
+	/** The tet sharing face f with tet t, or -1 if there is none. */
+	private int otherTet(int f, int t) {
+		return (faceTets[2 * f] == t ? faceTets[2 * f + 1] : faceTets[2 * f]);
+	}
+
+	/** Which of tet t's four faces is f. */
+	private int faceIndexOf(int t, int f) {
+		for (int i = 0; i < 4; i++) {
+			if (tetFaces[4 * t + i] == f) return i;
+		}
+		return -1;
+	}
+
+	/** Fill in new tet t's neighbors, and point each of them back at t. */
+	private void linkNeighbors(int t) {
+		for (int i = 0; i < 4; i++) {
+			int f = tetFaces[4 * t + i];
+			int n = otherTet(f, t);
+			tetNeighbors[4 * t + i] = n;
+			if (n != -1)
+				tetNeighbors[4 * n + faceIndexOf(n, f)] = t;
+		}
+	}
+
+	/** Point the neighbors of tet t, which is being removed, away from it. */
+	private void unlinkNeighbors(int t) {
+		for (int i = 0; i < 4; i++) {
+			int n = tetNeighbors[4 * t + i];
+			if (n != -1)
+				tetNeighbors[4 * n + faceIndexOf(n, tetFaces[4 * t + i])] = -1;
+			tetNeighbors[4 * t + i] = -1;
+		}
+	}
+
+	/** Fork-join task filling in the neighbors of tets [lo, hi) from the faces' tets. */
+	private class LinkNeighbors extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int lo, hi;
+
+		LinkNeighbors(int lo, int hi) {
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo > NEIGHBOR_GRAIN) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new LinkNeighbors(lo, mid), new LinkNeighbors(mid, hi));
+				return;
+			}
+			for (int t = lo; t < hi; t++) {
+				for (int i = 0; i < 4; i++) {
+					tetNeighbors[4 * t + i] = (isTetAlive(t) ? otherTet(tetFaces[4 * t + i], t) : -1);
+				}
+			}
+		}
+	}
+
+	/** One chunk [lo, hi) of a range handed to forEachChunk. */
+	private interface ChunkBody {
+		void run(int chunk, int lo, int hi);
+	}
+
+	/** Run body on the pool over [0, n) in chunks of grain, in parallel. Chunk c covers
+	 * [c * grain, min(n, (c + 1) * grain)), so a body can keep per-chunk results by c. */
+	private static void forEachChunk(int n, int grain, ChunkBody body) {
+		if (n > 0)
+			pool.invoke(new Chunks(body, n, grain, 0, (n + grain - 1) / grain));
+	}
+
+	/** Fork-join task running chunks [lo, hi) of a forEachChunk. */
+	private static class Chunks extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final ChunkBody body;
+		private final int n, grain, lo, hi;
+
+		Chunks(ChunkBody body, int n, int grain, int lo, int hi) {
+			this.body = body;
+			this.n = n;
+			this.grain = grain;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo > 1) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new Chunks(body, n, grain, lo, mid), new Chunks(body, n, grain, mid, hi));
+				return;
+			}
+			body.run(lo, lo * grain, Math.min(n, (lo + 1) * grain));
+		}
+	}
+
+	/** True if tet t has not been deleted. */
+	private boolean isTetAlive(int t) {
+		return tetFaces[4 * t] != -1;
+	}
+
+	/** True if face f has not been deleted. */
+	private boolean isFaceAlive(int f) {
+		return faceTets[2 * f] != -1;
+	}
+
+	/** Set one of the two tetrahedra of face f to t. Does nothing if both tets are already filled. */
+	private void setFaceTet(int f, int t) {
+		if (faceTets[2 * f] == -1) {faceTets[2 * f] = t;}
+		else if (faceTets[2 * f + 1] == -1) {faceTets[2 * f + 1] = t;}
+		else {} //tried to set a tet on a face that already had its tets filled.
+	}
+
+	/** Recompute the bounding box of face f from its vertex positions. */
+	private void computeFaceBounds(int f) {
+		int a = 3 * faceVerts[3 * f], b = 3 * faceVerts[3 * f + 1], c = 3 * faceVerts[3 * f + 2];
+		for (int k = 0; k < 3; k++) {
+			faceBounds[6 * f + k] = Math.min(vertPos[a + k], Math.min(vertPos[b + k], vertPos[c + k]));
+			faceBounds[6 * f + 3 + k] = Math.max(vertPos[a + k], Math.max(vertPos[b + k], vertPos[c + k]));
+		}
+	}
+
+	/** Center of face f's bounding box along axis (0 = x, 1 = y, 2 = z). */
+	private float faceCenter(int f, int axis) {
+		return (faceBounds[6 * f + axis] + faceBounds[6 * f + 3 + axis]) * 0.5f;
+	}
+
+	/** Copy the positions of face f's verts into p0, p1 and p2. */
+	private void loadFace(int f, Vector3f p0, Vector3f p1, Vector3f p2) {
+		loadVert(faceVerts[3 * f], p0);
+		loadVert(faceVerts[3 * f + 1], p1);
+		loadVert(faceVerts[3 * f + 2], p2);
+	}
+
+	private void loadVert(int v, Vector3f p) {
+		p.set(vertPos[3 * v], vertPos[3 * v + 1], vertPos[3 * v + 2]);
+	}
+
+	/** Registry key of the face over verts a, b and c: the sorted indices packed 21 bits apiece. */
+	private static long faceKey(int a, int b, int c) {
+		int t;
+		if (a > b) {t = a; a = b; b = t;}
+		if (b > c) {t = b; b = c; c = t;}
+		if (a > b) {t = a; a = b; b = t;}
+		return ((long)a << 42) | ((long)b << 21) | c;
+	}
+
+	/** Swap the winding of face f (its second and third verts). */
+	private void flipFace(int f) {
+		registry(); //the background registry build may still be reading faceVerts
+		int temp = faceVerts[3 * f + 2];
+		faceVerts[3 * f + 2] = faceVerts[3 * f + 1];
+		faceVerts[3 * f + 1] = temp;
+	}
+
+	/**********************************************************
+	 * Bounding volume hierarchy
+	 ********************************************************/
+
+	/** Build the BVH over the faces drawn on at least one side, replacing the old one. */
+	private void buildBVH() {
+		IntList all_faces = new IntList();
+		for (Batch b : batches) {
+			for (int i = 0; i < b.sides.size(); i++) {
+				int side = b.sides.get(i);
+				//a face drawn on both sides goes in once, with its side 0
+				if (side != -1 && (side % 2 == 0 || sideSlot[side - 1] == -1))
+					all_faces.add(side / 2);
+			}
+		}
+		bvhNodes = bvhFaceEnd = bvhDead = 0;
+		bvhBlock = 2 * bvhLeafSize + 1;
+		bvhRoot = -1;
+		if (all_faces.size() > 0) {
+			int[] ids = all_faces.array();
+			bvhRoot = bvhWrite(pool.invoke(new BuildBVH(ids, 0, all_faces.size())), ids, -1);
+		}
+	}
+
+	/** Fork-join task building the BVH subtree over faces ids[lo .. hi), see bvhHelper. */
+	private class BuildBVH extends RecursiveTask<BuildNode> {
+		private static final long serialVersionUID = 1L;
+		private final int[] ids;
+		private final int lo, hi;
+
+		BuildBVH(int[] ids, int lo, int hi) {
+			this.ids = ids;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected BuildNode compute() {
+			return bvhHelper(ids, lo, hi);
+		}
+	}
+
+	/** Build the BVH subtree over faces ids[lo .. hi) as BuildNodes, reordering ids so that each
+	 * leaf's faces are a range of it. bvhWrite then lays the subtree out in the BVH's arrays.
+	 * Inner nodes split their faces in two by box center along one axis, at the bin boundary that
+	 * gives the lowest surface area cost (the areas of the two child boxes, each times its face
+	 * count), with the centers binned into SAH_BINS buckets per axis so each level takes linear time.
+	 */
+	private BuildNode bvhHelper(int[] ids, int lo, int hi) {
+		BuildNode node = new BuildNode(lo, hi);
+		float[] centers = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+		for (int i = lo; i < hi; i++) {
+			int f = ids[i];
+			growBox(node.box, 0, faceBounds, 6 * f);
+			for (int k = 0; k < 3; k++) {
+				float c = faceCenter(f, k);
+				centers[k] = Math.min(centers[k], c);
+				centers[3 + k] = Math.max(centers[3 + k], c);
+			}
 		}
-		if (depth >= kdCutoff) {
-			//System.out.println("cutoff reached, creating node with faces : " + f.size());
-			TreeNode node = new TreeNode();
-			node.upperRight = upRight;
-			node.lowerLeft = lowLeft;
-			node.faces = f;
+		if (hi - lo <= bvhLeafSize)
 			return node;
+
+		int bestAxis = -1, bestBin = -1;
+		float bestCost = Float.MAX_VALUE;
+		int[] counts = new int[SAH_BINS];
+		float[] bins = new float[6 * SAH_BINS];
+		float[] leftArea = new float[SAH_BINS];
+		float[] box = new float[6];
+		for (int axis = 0; axis < 3; axis++) {
+			float min = centers[axis], extent = centers[3 + axis] - min;
+			if (!(extent > 0)) continue;
+			Arrays.fill(counts, 0);
+			for (int b = 0; b < SAH_BINS; b++) {
+				emptyBox(bins, 6 * b);
+			}
+			for (int i = lo; i < hi; i++) {
+				int b = sahBin(ids[i], axis, min, extent);
+				counts[b]++;
+				growBox(bins, 6 * b, faceBounds, 6 * ids[i]);
+			}
+			//sweep from the left for the area of everything up to each bin, then from the right for the cost
+			emptyBox(box, 0);
+			for (int b = 0; b < SAH_BINS - 1; b++) {
+				growBox(box, 0, bins, 6 * b);
+				leftArea[b] = boxArea(box, 0);
+			}
+			emptyBox(box, 0);
+			int right = 0;
+			for (int b = SAH_BINS - 1; b > 0; b--) {
+				growBox(box, 0, bins, 6 * b);
+				right += counts[b];
+				int left = hi - lo - right;
+				if (left == 0 || right == 0) continue;
+				float cost = leftArea[b - 1] * left + boxArea(box, 0) * right;
+				if (cost < bestCost) {
+					bestCost = cost;
+					bestAxis = axis;
+					bestBin = b - 1;
+				}
+			}
 		}
-		//System.out.println("Depth: " + depth);
-		//System.out.println("UpperRight: " + upRight);
-		//System.out.println("LowerLeft: " + lowLeft);
-		//System.out.println("Number of Faces: " + f.size());
-		//System.out.println("Faces: " + f);
-		
-		
-		int axis;
-		float midpoint;
-		
-		axis = depth % 3;
-		boolean splitPointless;
-		int tries = 1;
-		TreeNode node = new TreeNode();
-		node.upperRight = upRight;
-		node.lowerLeft = lowLeft;
-		ArrayList<Face> leftList = new ArrayList<Face>();
-		ArrayList<Face> rightList = new ArrayList<Face>();
-		Point3f leftUpRight, rightLowLeft;
-		do {
-			splitPointless = false;
-			Collections.sort(f, new FaceComparator(axis));
-			
-			int median = f.size() / 2;
-			
-			if (f.size() % 2 == 0) {
-				Point3f left = f.get(median-1).center;
-				Point3f right = f.get(median).center;
-	
-				if (axis == 0)
-					midpoint = (left.x + right.x) / 2f;
-				else if (axis == 1)
-					midpoint = (left.y + right.y) / 2f;
-				else
-					midpoint = (left.z + right.z) / 2f;
+
+		int mid;
+		if (bestAxis == -1) {
+			//every center is the same point; any split is as good as any other
+			mid = (lo + hi) >>> 1;
+		}
+		else {
+			float min = centers[bestAxis], extent = centers[3 + bestAxis] - min;
+			int i = lo, j = hi - 1;
+			while (i <= j) {
+				if (sahBin(ids[i], bestAxis, min, extent) <= bestBin) {
+					i++;
+				}
+				else {
+					int temp = ids[i];
+					ids[i] = ids[j];
+					ids[j--] = temp;
+				}
+			}
+			mid = i;
+		}
+
+		if (hi - lo >= BVH_FORK_MIN) {
+			//big subtrees are built in parallel (buildBVH runs this on the pool)
+			BuildBVH left = new BuildBVH(ids, lo, mid);
+			left.fork();
+			node.right = bvhHelper(ids, mid, hi);
+			node.left = left.join();
+		}
+		else {
+			node.left = bvhHelper(ids, lo, mid);
+			node.right = bvhHelper(ids, mid, hi);
+		}
+		return node;
+	}
+
+	/** Lay out the subtree built at node after the nodes already in the BVH's arrays, in depth-first
+	 * order (each node followed by its left subtree, then its right), under parent, and return the
+	 * index of its root. ids holds the faces node's leaves cover.
+	 */
+	private int bvhWrite(BuildNode node, int[] ids, int parent) {
+		int n = bvhNodes++;
+		ensureBVHCapacity(bvhNodes);
+		System.arraycopy(node.box, 0, bvhBox, 6 * n, 6);
+		bvhParent[n] = parent;
+		bvhCount[n] = node.hi - node.lo;
+		bvhChanges[n] = 0;
+		if (node.left == null) {
+			int start = bvhNewBlock();
+			bvhChild[2 * n] = -1;
+			bvhChild[2 * n + 1] = start;
+			for (int i = node.lo; i < node.hi; i++) {
+				bvhFaces[start + i - node.lo] = ids[i];
+				faceLeaf[ids[i]] = n;
+			}
+		}
+		else {
+			//(the arrays may grow while the children are written, so they are only read afterwards)
+			int left = bvhWrite(node.left, ids, n);
+			int right = bvhWrite(node.right, ids, n);
+			bvhChild[2 * n] = left;
+			bvhChild[2 * n + 1] = right;
+		}
+		return n;
+	}
+
+	/** Start of a new leaf block of bvhBlock ints at the end of bvhFaces. */
+	private int bvhNewBlock() {
+		int start = bvhFaceEnd;
+		bvhFaceEnd += bvhBlock;
+		if (bvhFaceEnd > bvhFaces.length)
+			bvhFaces = Arrays.copyOf(bvhFaces, Math.max(bvhFaceEnd, 2 * bvhFaces.length));
+		return start;
+	}
+
+	private void ensureBVHCapacity(int n) {
+		if (n <= bvhParent.length) return;
+		int cap = Math.max(n, bvhParent.length * 2);
+		bvhBox = Arrays.copyOf(bvhBox, 6 * cap);
+		bvhChild = Arrays.copyOf(bvhChild, 2 * cap);
+		bvhParent = Arrays.copyOf(bvhParent, cap);
+		bvhCount = Arrays.copyOf(bvhCount, cap);
+		bvhChanges = Arrays.copyOf(bvhChanges, cap);
+	}
+
+	/** SAH bin of face f's box center along axis, for centers spanning extent from min. */
+	private int sahBin(int f, int axis, float min, float extent) {
+		return Math.min(SAH_BINS - 1, (int)((faceCenter(f, axis) - min) / extent * SAH_BINS));
+	}
+
+	/** Set box[at .. at + 6) to a box holding nothing, which any box grows over. */
+	private static void emptyBox(float[] box, int at) {
+		for (int k = 0; k < 3; k++) {
+			box[at + k] = Float.MAX_VALUE;
+			box[at + 3 + k] = -Float.MAX_VALUE;
+		}
+	}
+
+	/** Grow the box at box[boxAt] (six floats: min x, y, z then max x, y, z) to hold the box at from[at]. */
+	private static void growBox(float[] box, int boxAt, float[] from, int at) {
+		for (int k = 0; k < 3; k++) {
+			box[boxAt + k] = Math.min(box[boxAt + k], from[at + k]);
+			box[boxAt + 3 + k] = Math.max(box[boxAt + 3 + k], from[at + 3 + k]);
+		}
+	}
+
+	/** Half the surface area of the box at box[at] (0 for an empty box). */
+	private static float boxArea(float[] box, int at) {
+		float x = box[at + 3] - box[at], y = box[at + 4] - box[at + 1], z = box[at + 5] - box[at + 2];
+		if (x < 0 || y < 0 || z < 0) return 0;
+		return x * y + y * z + z * x;
+	}
+
+	/** How much the half surface area of BVH node n's box would grow to hold face f. */
+	private float bvhGrowth(int n, int f) {
+		int b = 6 * n;
+		float x = Math.max(bvhBox[b + 3], faceBounds[6 * f + 3]) - Math.min(bvhBox[b], faceBounds[6 * f]);
+		float y = Math.max(bvhBox[b + 4], faceBounds[6 * f + 4]) - Math.min(bvhBox[b + 1], faceBounds[6 * f + 1]);
+		float z = Math.max(bvhBox[b + 5], faceBounds[6 * f + 5]) - Math.min(bvhBox[b + 2], faceBounds[6 * f + 2]);
+		return x * y + y * z + z * x - boxArea(bvhBox, b);
+	}
+
+	/** Add face f to the BVH: down the child whose box grows the least in surface area into a leaf,
+	 * which is split with the SAH build if it gets too full, then refit the boxes above.
+	 */
+	private void bvhInsert(int f) {
+		if (bvhRoot == -1) {
+			bvhRoot = bvhNodes++;
+			ensureBVHCapacity(bvhNodes);
+			emptyBox(bvhBox, 6 * bvhRoot);
+			bvhParent[bvhRoot] = -1;
+			bvhCount[bvhRoot] = 0;
+			bvhChild[2 * bvhRoot] = -1;
+			bvhChild[2 * bvhRoot + 1] = bvhNewBlock();
+		}
+		int n = bvhRoot;
+		while (bvhChild[2 * n] != -1) {
+			int left = bvhChild[2 * n], right = bvhChild[2 * n + 1];
+			n = bvhGrowth(left, f) <= bvhGrowth(right, f) ? left : right;
+		}
+		bvhFaces[bvhChild[2 * n + 1] + bvhCount[n]++] = f;
+		faceLeaf[f] = n;
+		if (bvhCount[n] > 2 * bvhLeafSize) {
+			int[] ids = Arrays.copyOfRange(bvhFaces, bvhChild[2 * n + 1], bvhChild[2 * n + 1] + bvhCount[n]);
+			bvhReplace(n, bvhWrite(bvhHelper(ids, 0, ids.length), ids, bvhParent[n]));
+			bvhDead++;
+		}
+		else {
+			bvhRefit(n);
+		}
+	}
+
+	/** Remove face f from its leaf, dropping the leaf if that empties it, and refit the boxes above. */
+	private void bvhRemove(int f) {
+		int leaf = faceLeaf[f];
+		faceLeaf[f] = -1;
+		int start = bvhChild[2 * leaf + 1], last = start + --bvhCount[leaf];
+		for (int i = start; i < last; i++) {
+			if (bvhFaces[i] == f) {
+				bvhFaces[i] = bvhFaces[last];
+				break;
+			}
+		}
+		int parent = bvhParent[leaf];
+		if (bvhCount[leaf] > 0) {
+			bvhRefit(leaf);
+		}
+		else if (parent == -1) {
+			bvhRoot = -1;
+			bvhDead++;
+		}
+		else {
+			//the leaf's sibling takes its parent's place
+			int sibling = (bvhChild[2 * parent] == leaf ? bvhChild[2 * parent + 1] : bvhChild[2 * parent]);
+			bvhReplace(parent, sibling);
+			bvhDead += 2;
+		}
+	}
+
+	/** Put the subtree at sub in place of node n in the BVH, then refit the boxes above it. */
+	private void bvhReplace(int n, int sub) {
+		bvhSplice(n, sub);
+		if (bvhParent[sub] != -1)
+			bvhRefit(bvhParent[sub]);
+	}
+
+	/** Put the subtree at sub in place of node n in the BVH, leaving the boxes above as they are. */
+	private void bvhSplice(int n, int sub) {
+		int parent = bvhParent[n];
+		bvhParent[sub] = parent;
+		if (parent == -1)
+			bvhRoot = sub;
+		else if (bvhChild[2 * parent] == n)
+			bvhChild[2 * parent] = sub;
+		else
+			bvhChild[2 * parent + 1] = sub;
+	}
+
+	/** Recompute the boxes and face counts from node n up to the root after a face was added or
+	 * removed below n, counting the change in each. The highest subtree to have seen more than twice
+	 * as many changes as it has faces since it was built is then built again, as its boxes will have
+	 * drifted far from what the SAH build would give; over many changes this costs O(log n) each.
+	 */
+	private void bvhRefit(int n) {
+		int stale = -1;
+		for (; n != -1; n = bvhParent[n]) {
+			emptyBox(bvhBox, 6 * n);
+			int left = bvhChild[2 * n], right = bvhChild[2 * n + 1];
+			if (left == -1) {
+				for (int i = right; i < right + bvhCount[n]; i++) {
+					growBox(bvhBox, 6 * n, faceBounds, 6 * bvhFaces[i]);
+				}
 			}
 			else {
-				if (axis == 0)
-					midpoint = f.get(median).center.x;
-				else if (axis == 1)
-					midpoint = f.get(median).center.y;
-				else
-					midpoint = f.get(median).center.z; 
+				growBox(bvhBox, 6 * n, bvhBox, 6 * left);
+				growBox(bvhBox, 6 * n, bvhBox, 6 * right);
+				bvhCount[n] = bvhCount[left] + bvhCount[right];
+				if (++bvhChanges[n] > 2 * bvhCount[n])
+					stale = n;
 			}
-			//System.out.println("axis: " + axis);
-			//System.out.println("midpt: " + midpoint);
-			//System.out.println("^^^^^^^^^^^^^^");
-			
+		}
+		if (stale != -1) {
+			IntList faces = new IntList(bvhCount[stale]);
+			bvhDead += collectFaces(stale, faces);
+			int[] ids = faces.array();
+			BuildNode built = faces.size() >= BVH_FORK_MIN ? pool.invoke(new BuildBVH(ids, 0, faces.size())) : bvhHelper(ids, 0, faces.size());
+			//the same faces, so the boxes above still fit
+			bvhSplice(stale, bvhWrite(built, ids, bvhParent[stale]));
+		}
+	}
+
+	/** Add the faces in the leaves under BVH node n to faces, and return the number of nodes under n. */
+	private int collectFaces(int n, IntList faces) {
+		if (bvhChild[2 * n] == -1) {
+			for (int i = bvhChild[2 * n + 1]; i < bvhChild[2 * n + 1] + bvhCount[n]; i++) {
+				faces.add(bvhFaces[i]);
+			}
+			return 1;
+		}
+		return 1 + collectFaces(bvhChild[2 * n], faces) + collectFaces(bvhChild[2 * n + 1], faces);
+	}
+
+	/** Set the most faces a BVH leaf is built with (4 to begin with). Smaller leaves mean fewer faces
+	 * tested per line query but more nodes to visit and store. Rebuilds the BVH, so it cannot be
+	 * called inside an edit.
+	 */
+	public void setBVHLeafSize(int size) {
+		if (isEditing()) throw new IllegalStateException("setBVHLeafSize() inside an edit");
+		if (size < 1) throw new IllegalArgumentException("BVH leaf size " + size + " is less than 1");
+		bvhLeafSize = size;
+		buildBVH();
+	}
+
+	/** The most faces a BVH leaf is built with, see setBVHLeafSize. */
+	public int getBVHLeafSize() {
+		return bvhLeafSize;
+	}
+
+	/** BVH nodes visited by the last accelerated line query (0 for a brute force one): intersectLine,
+	 * intersectLineSegment, or a pick such as findFirstPointAlongLine. */
+	public int getLastQueryNodesVisited() {
+		return queryNodes;
+	}
+
+	/** Faces tested against the line by the last line query, see getLastQueryNodesVisited. */
+	public int getLastQueryFacesTested() {
+		return queryFaces;
+	}
+
+	/**********************************************************
+	 * Editing
+	 ********************************************************/
 
-			if (axis == 0) {
-				leftUpRight = new Point3f(midpoint, upRight.y, upRight.z);
-				rightLowLeft = new Point3f(midpoint, lowLeft.y, lowLeft.z);
-				if(upRight.x == midpoint || lowLeft.x == midpoint)
-					splitPointless = true;
+	private void removeVertex(int v) {
+		culledVerts.add(v);
+	}
+
+	/** Journal face f as possibly having changed boundary status. */
+	private void markDirty(int f) {
+		if (!faceDirty[f]) {
+			faceDirty[f] = true;
+			dirtyFaces.add(f);
+		}
+	}
+
+	private void removeFace(int f) {
+		registry().remove(faceKey(faceVerts[3 * f], faceVerts[3 * f + 1], faceVerts[3 * f + 2]));
+		for (int k = 0; k < 3; k++) {
+			int v = faceVerts[3 * f + k];
+			if (--vertFaceCount[v] == 0)
+				removeVertex(v);
+		}
+		faceTets[2 * f] = -1;
+		faceTets[2 * f + 1] = -1;
+		liveFaceCount--;
+		freedFaces.add(f);
+	}
+
+	/** When deleting tet t, used to delete (or hand over to its other tet) face f.
+	 *
+	 * @return true if f was a boundary and has been removed.
+	 */
+	public boolean removeFaceIfNecessary(int f, int t, int i) {
+		markDirty(f);
+		if (faceTets[2 * f + 1] == -1) { //was a boundary
+			removeFace(f);
+			return true;
+		}
+		else { // had a second tet - have to rearrange
+			if (faceTets[2 * f] == t) {
+				//shift face's second tet to first slot.
+				faceTets[2 * f] = faceTets[2 * f + 1];
+				faceTets[2 * f + 1] = -1;
+				//Swap vertex order so that the face is now pointing outwards.
+				flipFace(f);
 			}
-			else if (axis == 1){
-				leftUpRight = new Point3f(upRight.x, midpoint, upRight.z);
-				rightLowLeft = new Point3f(lowLeft.x, midpoint, lowLeft.z);
-				if(upRight.y == midpoint || lowLeft.y == midpoint)
-					splitPointless = true;
+			else if (faceTets[2 * f + 1] == t) {
+				faceTets[2 * f + 1] = -1;
 			}
 			else {
-				leftUpRight = new Point3f(upRight.x, upRight.y, midpoint);
-				rightLowLeft = new Point3f(lowLeft.x, lowLeft.y, midpoint);
-				if(upRight.z == midpoint || lowLeft.z == midpoint)
-					splitPointless = true;
+				System.out.println("neither of f" + i + "'s tets was toRemove!");
+			}
+			return false;
+		}
+	}
+
+	/** Start a batch of edits. Until the matching commit(), deleteTet(s), createVert and createTets
+	 * only change the tets and faces; the surface, normals, index buffer and BVH are brought up
+	 * to date once, by commit(). Edits may nest, and only the outermost commit() applies them.
+	 * Picks made inside an edit see the surface as of the last commit.
+	 */
+	public void beginEdit() {
+		if (editDepth++ == 0)
+			stepStart = undoRecords.size();
+	}
+
+	/** End a batch of edits started by beginEdit(), updating the surface if it is the outermost one. */
+	public void commit() {
+		if (editDepth == 0) throw new IllegalStateException("commit() without beginEdit()");
+		if (--editDepth == 0) {
+			updateDirtyFaces();
+			//the removed faces' sides and BVH entries are gone now, so their slots can be reused
+			while (freedFaces.size() > 0) freeFaces.add(freedFaces.pop());
+			wrapVertexBuffers();
+			islands = findIslands();
+			islandsInStep = !replaying && undoRecords.size() > stepStart;
+			if (islandsInStep) {
+				undoSteps.add(stepStart);
+				redoRecords.clear();
+				redoSteps.clear();
 			}
-			if (splitPointless) {
-				axis = (axis + 1) % 3;
-				tries++;
+		}
+	}
+
+	/** True while inside beginEdit()/commit(). */
+	public boolean isEditing() {
+		return editDepth > 0;
+	}
+
+	/** Remove the given tetrahedron. Does nothing if it is already gone. */
+	public void deleteTet(int toRemove) {
+		beginEdit();
+		removeTet(toRemove);
+		commit();
+	}
+
+	/** Remove the first count tetrahedra listed in tets, with one surface update. */
+	public void deleteTets(int[] tets, int count) {
+		beginEdit();
+		for (int i = 0; i < count; i++) {
+			removeTet(tets[i]);
+		}
+		commit();
+	}
+
+	/** Remove the given tetrahedra, with one surface update. */
+	public void deleteTets(Collection<Integer> tets) {
+		beginEdit();
+		for (int t : tets) {
+			removeTet(t);
+		}
+		commit();
+	}
+
+	/** Add a vertex at (x, y, z) for use by createTets, and return its index. */
+	public int createVert(float x, float y, float z) {
+		beginEdit();
+		int v = addVert(x, y, z);
+		commit();
+		return v;
+	}
+
+	/** Add the first count tets of tets (in v0, v1, v2, v3 int order, as for setTets) with one
+	 * surface update. The new tets are numbered consecutively.
+	 *
+	 * @return the index of the first new tet.
+	 */
+	public int createTets(int[] tets, int count) {
+		beginEdit();
+		int first = tetCount;
+		ensureTetCapacity(tetCount + count);
+		for (int i = 0; i < count; i++) {
+			addTet(tets[4 * i], tets[4 * i + 1], tets[4 * i + 2], tets[4 * i + 3], 0);
+		}
+		commit();
+		return first;
+	}
+
+	private void removeTet(int toRemove) {
+		if (!isTetAlive(toRemove)) return;
+		liveTetCount--;
+		for (int i = 0; i < 4; i++) {
+			if (tetNeighbors[4 * toRemove + i] != -1)
+				islandSeeds.add(tetNeighbors[4 * toRemove + i]);
+		}
+		unlinkNeighbors(toRemove);
+		if (usesVert(toRemove, anchorVert)) anchorTets--;
+		journal(JOURNAL_REMOVE, toRemove);
+
+		//cull faces if necessary
+		for (int i = 0; i < 4; i++) {
+			removeFaceIfNecessary(tetFaces[4 * toRemove + i], toRemove, i);
+		}
+
+		//remove tet from tets list, keeping its verts so a fill can put it back
+		tetFaces[4 * toRemove] = -1;
+		removedTets.add(toRemove);
+	}
+
+	/** Bring the drawn sides (and the BVH, which holds exactly the faces with a drawn side) up to
+	 * date with the faces in the dirty-face journal, then empty it.
+	 * Only journaled faces are looked at, so the cost follows the size of the edit.
+	 */
+	private void updateDirtyFaces() {
+		IntList toAdds = new IntList();
+		float[] n = new float[3];
+		for (int i = 0; i < dirtyFaces.size(); i++) {
+			int f = dirtyFaces.get(i);
+			faceDirty[f] = false;
+			boolean wasDrawn = (sideSlot[2 * f] != -1 || sideSlot[2 * f + 1] != -1), drawn = false;
+			for (int side = 2 * f; side < 2 * f + 2; side++) {
+				boolean shown = isSideShown(side);
+				drawn |= shown;
+				if (sideSlot[side] != -1 && (!shown || batches.get(sideBatch[side]).mat != tetMats[faceTets[side]] || sideLit[side] != isSideLit(side))) {
+					cullSide(side, n);
+				}
+				if (shown && sideSlot[side] == -1) {
+					toAdds.add(side);
+				}
+				else if (shown) {
+					//still shown, but the winding may have flipped (covered and uncovered within one edit)
+					Batch b = batches.get(sideBatch[side]);
+					int idx = sideSlot[side];
+					if (b.tris[3 * idx] != sideVert(side, 0) || b.tris[3 * idx + 1] != sideVert(side, 1) || b.tris[3 * idx + 2] != sideVert(side, 2)) {
+						if (sideLit[side])
+							updateTriNormal(b.tris[3 * idx], b.tris[3 * idx + 1], b.tris[3 * idx + 2], -1, n);
+						writeSide(b, idx, side);
+						if (sideLit[side])
+							updateTriNormal(b.tris[3 * idx], b.tris[3 * idx + 1], b.tris[3 * idx + 2], 1, n);
+						markChunksAround(b, idx);
+					}
+				}
+			}
+			if (wasDrawn && !drawn)
+				bvhRemove(f);
+			else if (drawn && !wasDrawn)
+				bvhInsert(f);
+		}
+		dirtyFaces.clear();
+
+		//added after the culls, so that they reuse the culled slots
+		for (int i = 0; i < toAdds.size(); i++) {
+			int side = toAdds.get(i);
+			Batch b = batch(chunkOf(side / 2), tetMats[faceTets[side]]);
+			int idx;
+			if (b.culled.size() > 0) {
+				idx = b.culled.pop();
+				b.sides.set(idx, side);
+			}
+			else {
+				idx = b.sides.size();
+				ensurePolygonCapacity(b, idx + 1);
+				b.sides.add(side);
+			}
+			writeSide(b, idx, side);
+			sideSlot[side] = idx;
+			sideBatch[side] = b.index;
+			sideLit[side] = isSideLit(side);
+			if (sideLit[side])
+				updateTriNormal(b.tris[3 * idx], b.tris[3 * idx + 1], b.tris[3 * idx + 2], 1, n);
+			for (int k = 0; k < 3; k++) {
+				faceExtent = Math.max(faceExtent, faceBounds[6 * (side / 2) + 3 + k] - faceBounds[6 * (side / 2) + k]);
+			}
+			markChunksAround(b, idx);
+		}
+
+		//once most of the BVH's slots hold nodes edits have dropped, lay it out afresh
+		if (2 * bvhDead > bvhNodes)
+			buildBVH();
+
+		//only the chunks the edit touched get new buffers
+		for (Batch b : batches) {
+			if (b.culled.size() >= compactMinCulled && b.culled.size() >= compactFraction * b.sides.size())
+				compactPolygons(b);
+		}
+		ArrayList<Chunk> dirty = new ArrayList<Chunk>();
+		for (Chunk c : chunks) {
+			if (c != null && c.dirty) dirty.add(c);
+		}
+		rebuildChunks(dirty);
+	}
+
+	/** Stop drawing side, taking its normal back out of the vertex normals if it was lit. */
+	private void cullSide(int side, float[] n) {
+		Batch b = batches.get(sideBatch[side]);
+		int idx = sideSlot[side];
+		//take away the normal the slot was drawn with (the face's own winding may have flipped since)
+		if (sideLit[side])
+			updateTriNormal(b.tris[3 * idx], b.tris[3 * idx + 1], b.tris[3 * idx + 2], -1, n);
+		markChunksAround(b, idx);
+		//cull the slot by collapsing it onto a single vertex
+		b.tris[3 * idx] = 0;
+		b.tris[3 * idx + 1] = 0;
+		b.tris[3 * idx + 2] = 0;
+		b.sides.set(idx, -1);
+		b.culled.add(idx);
+		sideSlot[side] = -1;
+	}
+
+	/** Squeeze the culled slots out of every batch, so they stop taking up memory. */
+	public void compactPolygons() {
+		for (Batch b : batches) {
+			compactPolygons(b);
+		}
+	}
+
+	/** Squeeze the culled slots out of batch b (its index buffer skips them anyway).
+	 * Live slots past the new end are moved down into the holes below it, so the cost follows
+	 * the number of culled slots rather than the size of the surface.
+	 */
+	private void compactPolygons(Batch b) {
+		int size = b.sides.size() - b.culled.size();
+		int tail = b.sides.size() - 1;
+		for (int i = 0; i < b.culled.size(); i++) {
+			int hole = b.culled.get(i);
+			if (hole >= size) continue;
+			while (b.sides.get(tail) == -1) tail--;
+			int side = b.sides.get(tail);
+			b.tris[3 * hole] = b.tris[3 * tail];
+			b.tris[3 * hole + 1] = b.tris[3 * tail + 1];
+			b.tris[3 * hole + 2] = b.tris[3 * tail + 2];
+			b.sides.set(hole, side);
+			b.sides.set(tail, -1);
+			sideSlot[side] = hole;
+			tail--;
+		}
+		while (b.sides.size() > size) b.sides.pop();
+		b.culled.clear();
+	}
+
+	/** Give each of cs new vertex buffers holding just the verts its batches use, new levels of detail,
+	 * and new index buffers. Buffers are replaced rather than written, so ones already handed to the
+	 * renderer stay valid, see hasStaticBatchData. */
+	private void rebuildChunks(final List<Chunk> cs) {
+		//every chunk's vertex set must be up to date before any is simplified, see simplifyChunk
+		forEachChunk(cs.size(), 1, new ChunkBody() {
+			@Override
+			public void run(int c, int lo, int hi) {
+				for (int i = lo; i < hi; i++) {
+					gatherChunkVerts(cs.get(i));
+				}
+			}
+		});
+		forEachChunk(cs.size(), 1, new ChunkBody() {
+			@Override
+			public void run(int c, int lo, int hi) {
+				for (int i = lo; i < hi; i++) {
+					simplifyChunk(cs.get(i));
+					writeChunkPolygons(cs.get(i));
+					cs.get(i).dirty = false;
+				}
+			}
+		});
+	}
+
+	/** Number chunk c's verts (those of its live slots) and copy them into new vertex buffers. */
+	private void gatherChunkVerts(Chunk c) {
+		int slots = 0;
+		for (int i = 0; i < c.batches.size(); i++) {
+			Batch b = batches.get(c.batches.get(i));
+			slots += b.sides.size() - b.culled.size();
+		}
+		LongIntHashMap local = new LongIntHashMap(slots);
+		IntList verts = new IntList(slots);
+		for (int i = 0; i < c.batches.size(); i++) {
+			Batch b = batches.get(c.batches.get(i));
+			for (int j = 0; j < b.sides.size(); j++) {
+				if (b.sides.get(j) == -1) continue;
+				for (int k = 0; k < 3; k++) {
+					int v = b.tris[3 * j + k];
+					if (local.get(v) == -1) {
+						local.put(v, verts.size());
+						verts.add(v);
+					}
+				}
+			}
+		}
+		float[] pos = new float[3 * verts.size()], norm = new float[3 * verts.size()], tex = new float[2 * verts.size()];
+		for (int l = 0; l < verts.size(); l++) {
+			int v = verts.get(l);
+			System.arraycopy(vertPos, 3 * v, pos, 3 * l, 3);
+			System.arraycopy(normArr, 3 * v, norm, 3 * l, 3);
+			System.arraycopy(texArr, 2 * v, tex, 2 * l, 2);
+		}
+		c.local = local;
+		c.verts = verts;
+		c.vertexData = FloatBuffer.wrap(pos);
+		c.normalData = FloatBuffer.wrap(norm);
+		c.texCoordData = FloatBuffer.wrap(tex);
+	}
+
+	/** Build chunk c's levels of detail by vertex clustering.
+	 *
+	 * At level l > 0 each vert moves to the vert nearest the center of its cell of a grid with cells
+	 * lodCell * 2^l a side, and triangles that collapse are dropped. Verts that other chunks also use
+	 * (seam verts) only move to verts used by exactly the same chunks, so that every chunk sharing a seam
+	 * finds the same targets; a seam vert is moved at the finest level of the chunks sharing it when the
+	 * polygons are written (writeChunkPolygons), so seams between chunks at different levels never crack.
+	 * Here seam verts are left where they are.
+	 */
+	private void simplifyChunk(Chunk c) {
+		int n = c.verts.size(), dim = 1 << chunkDepth;
+
+		//find the other chunks using each vert: they draw a face using it, so they're in reach of markChunksAround.
+		//Verts used by the same other chunks (as found, in grid order) share a group, found by a hash of the
+		//chunk ids: groups maps it (or the next key along, on a collision) to the group, and groupSeam holds
+		//the first seam vert of each group, whose chunks are compared to make sure.
+		LongIntHashMap groups = new LongIntHashMap();
+		IntList groupSeam = new IntList();
+		int[] group = new int[n];
+		IntList seamVerts = new IntList(), seamStart = new IntList(), seamChunks = new IntList(), neighbors = new IntList();
+		int[] lo = new int[3], hi = new int[3];
+		c.seamOf = new int[n];
+		for (int l = 0; l < n; l++) {
+			int v = c.verts.get(l);
+			int start = seamChunks.size();
+			long hash = 1;
+			chunkRangeAround(v, lo, hi);
+			for (int z = lo[2]; z <= hi[2]; z++)
+				for (int y = lo[1]; y <= hi[1]; y++)
+					for (int x = lo[0]; x <= hi[0]; x++) {
+						Chunk o = chunks[(z * dim + y) * dim + x];
+						if (o == null || o == c || o.local == null || o.local.get(v) == -1) continue;
+						seamChunks.add(o.id);
+						hash = hash * 0x9E3779B97F4A7C15L + o.id;
+						if (!neighbors.contains(o.id)) neighbors.add(o.id);
+					}
+			c.seamOf[l] = -1;
+			if (seamChunks.size() == start) continue;
+			int g;
+			for (long key = hash & Long.MAX_VALUE; ; key = (key + 1) & Long.MAX_VALUE) {
+				g = groups.get(key);
+				if (g == -1) {
+					g = groupSeam.size() + 1;
+					groups.put(key, g);
+					groupSeam.add(seamVerts.size());
+					break;
+				}
+				int s = groupSeam.get(g - 1);
+				int end = (s + 1 < seamStart.size() ? seamStart.get(s + 1) : start);
+				if (sameInts(seamChunks, seamStart.get(s), end, start, seamChunks.size())) break;
+			}
+			group[l] = g;
+			c.seamOf[l] = seamVerts.size();
+			seamVerts.add(l);
+			seamStart.add(start);
+		}
+		seamStart.add(seamChunks.size());
+		c.seamStart = seamStart.toArray();
+		c.seamChunks = seamChunks.toArray();
+		c.neighbors = neighbors.toArray();
+
+		//pick each level's targets: the vert of each (group, cell) nearest the cell's center, lowest index on ties
+		float[] pos = c.vertexData.array();
+		c.reps = new int[LOD_LEVELS][];
+		c.lodError = new float[LOD_LEVELS];
+		if (groupSeam.size() > LOD_MAX_GROUPS) {
+			//too many groups for lodKey: keep the full surface, which also keeps every seam with this chunk still
+			Arrays.fill(c.lodError, 1, LOD_LEVELS, Float.POSITIVE_INFINITY);
+		}
+		for (int level = 1; level < LOD_LEVELS && groupSeam.size() <= LOD_MAX_GROUPS; level++) {
+			float cell = lodCell * (1 << level);
+			LongIntHashMap best = new LongIntHashMap(n);
+			long[] key = new long[n];
+			for (int l = 0; l < n; l++) {
+				key[l] = lodKey(pos, l, cell, group[l]);
+				int r = best.get(key[l]);
+				if (r == -1 || closerToCell(pos, l, r, cell, c.verts)) best.put(key[l], l);
+			}
+			int[] reps = c.reps[level] = new int[n];
+			float err = 0;
+			for (int l = 0; l < n; l++) {
+				reps[l] = best.get(key[l]);
+				float dx = pos[3 * l] - pos[3 * reps[l]], dy = pos[3 * l + 1] - pos[3 * reps[l] + 1], dz = pos[3 * l + 2] - pos[3 * reps[l] + 2];
+				err = Math.max(err, dx * dx + dy * dy + dz * dz);
+			}
+			c.lodError[level] = (float)Math.sqrt(err);
+		}
+
+		//each batch's triangles at each level, with seam verts still to be moved
+		for (int i = 0; i < c.batches.size(); i++) {
+			Batch b = batches.get(c.batches.get(i));
+			b.lod = new int[LOD_LEVELS][];
+			for (int level = 0; level < LOD_LEVELS; level++) {
+				int[] reps = c.reps[level];
+				int[] tris = new int[3 * (b.sides.size() - b.culled.size())];
+				int m = 0;
+				for (int j = 0; j < b.sides.size(); j++) {
+					if (b.sides.get(j) == -1) continue;
+					int v0 = c.local.get(b.tris[3 * j]), v1 = c.local.get(b.tris[3 * j + 1]), v2 = c.local.get(b.tris[3 * j + 2]);
+					if (reps != null) {
+						if (c.seamOf[v0] == -1) v0 = reps[v0];
+						if (c.seamOf[v1] == -1) v1 = reps[v1];
+						if (c.seamOf[v2] == -1) v2 = reps[v2];
+						if (v0 == v1 || v1 == v2 || v2 == v0) continue;
+					}
+					tris[m++] = v0;
+					tris[m++] = v1;
+					tris[m++] = v2;
+				}
+				b.lod[level] = (m == tris.length ? tris : Arrays.copyOf(tris, m));
+			}
+		}
+	}
+
+	/** True if list holds the same ints in [a, aEnd) as in [b, bEnd). */
+	private static boolean sameInts(IntList list, int a, int aEnd, int b, int bEnd) {
+		if (aEnd - a != bEnd - b) return false;
+		for (int i = 0; i < aEnd - a; i++) {
+			if (list.get(a + i) != list.get(b + i)) return false;
+		}
+		return true;
+	}
+
+	/** Hash key of the cell (cells cell a side) holding local vert l of pos, and vert group g
+	 * (at most LOD_MAX_GROUPS, so that the key is never negative). */
+	private long lodKey(float[] pos, int l, float cell, int g) {
+		long key = g;
+		for (int k = 0; k < 3; k++) {
+			long i = (long)Math.floor((pos[3 * l + k] - chunkMin[k]) / cell) + (1 << 16);
+			key = (key << 17) | (i & 0x1ffff);
+		}
+		return key;
+	}
+
+	/** True if local vert a of pos is nearer the center of its cell than local vert b (in the same cell),
+	 * or as near with a lower mesh vertex index. */
+	private boolean closerToCell(float[] pos, int a, int b, float cell, IntList verts) {
+		float da = 0, db = 0;
+		for (int k = 0; k < 3; k++) {
+			float center = chunkMin[k] + ((float)Math.floor((pos[3 * a + k] - chunkMin[k]) / cell) + 0.5f) * cell;
+			da += (pos[3 * a + k] - center) * (pos[3 * a + k] - center);
+			db += (pos[3 * b + k] - center) * (pos[3 * b + k] - center);
+		}
+		return da < db || (da == db && verts.get(a) < verts.get(b));
+	}
+
+	/** Give chunk c's batches new index buffers at its current level, moving each seam vert at the finest
+	 * level of the chunks sharing it. */
+	private void writeChunkPolygons(Chunk c) {
+		int seams = c.seamStart.length - 1;
+		int[] seamLevel = new int[seams];
+		for (int s = 0; s < seams; s++) {
+			int level = c.level;
+			for (int i = c.seamStart[s]; i < c.seamStart[s + 1]; i++) {
+				level = Math.min(level, chunks[c.seamChunks[i]].level);
+			}
+			seamLevel[s] = (level > 0 ? level : -1);
+		}
+		for (int i = 0; i < c.batches.size(); i++) {
+			Batch b = batches.get(c.batches.get(i));
+			int[] tris = b.lod[c.level], out = new int[tris.length];
+			int m = 0;
+			for (int j = 0; j < tris.length; j += 3) {
+				int v0 = seamMove(c, tris[j], seamLevel), v1 = seamMove(c, tris[j + 1], seamLevel), v2 = seamMove(c, tris[j + 2], seamLevel);
+				if (v0 == v1 || v1 == v2 || v2 == v0) continue;
+				out[m++] = v0;
+				out[m++] = v1;
+				out[m++] = v2;
+			}
+			b.data = IntBuffer.wrap(m == out.length ? out : Arrays.copyOf(out, m));
+		}
+	}
+
+	/** Where local vert l of chunk c goes, given the level each seam vert moves at (-1 for not at all). */
+	private static int seamMove(Chunk c, int l, int[] seamLevel) {
+		int s = c.seamOf[l];
+		if (s == -1 || seamLevel[s] == -1) return l;
+		return c.reps[seamLevel[s]][l];
+	}
+
+	/** Pick each chunk's level of detail for an eye at eye (in the mesh's space), where something
+	 * one unit across at distance d covers pixelScale / d pixels: the coarsest level whose error
+	 * covers at most the maximum screen error (see setMaxScreenError). Chunks that change level, and
+	 * the chunks they share seams with, get new index buffers.
+	 */
+	@Override
+	public void selectLevelOfDetail(Point3f eye, float pixelScale) {
+		int dim = 1 << chunkDepth;
+		ArrayList<Chunk> changed = new ArrayList<Chunk>();
+		for (Chunk c : chunks) {
+			if (c == null || c.lodError == null) continue;
+			//the chunk's faces have their centers in its cell, so reach at most half a face out of it
+			int x = c.id % dim, y = c.id / dim % dim, z = c.id / (dim * dim);
+			float dx = boxDistance(eye.x, chunkMin[0] + x * chunkCell[0], chunkCell[0]);
+			float dy = boxDistance(eye.y, chunkMin[1] + y * chunkCell[1], chunkCell[1]);
+			float dz = boxDistance(eye.z, chunkMin[2] + z * chunkCell[2], chunkCell[2]);
+			float d = (float)Math.sqrt(dx * dx + dy * dy + dz * dz);
+			int level = (c.reps[1] != null ? LOD_LEVELS - 1 : 0); //a chunk with no coarser levels stays at 0
+			while (level > 0 && c.lodError[level] * pixelScale > maxScreenError * d) level--;
+			if (level != c.level) {
+				c.level = level;
+				changed.add(c);
+			}
+		}
+		if (changed.isEmpty()) return;
+
+		boolean[] rewrite = new boolean[chunks.length];
+		for (Chunk c : changed) {
+			rewrite[c.id] = true;
+			for (int o : c.neighbors) rewrite[o] = true;
+		}
+		for (int i = 0; i < chunks.length; i++) {
+			if (rewrite[i] && chunks[i] != null && chunks[i].lodError != null) writeChunkPolygons(chunks[i]);
+		}
+	}
+
+	/** Distance along one axis from p to the cell from lo to lo + size, grown by half a face extent. */
+	private float boxDistance(float p, float lo, float size) {
+		return Math.max(0, Math.max(lo - faceExtent / 2 - p, p - (lo + size + faceExtent / 2)));
+	}
+
+	/** Set the most a chunk's level of detail may be off by on screen, in pixels (1 to begin with). */
+	public void setMaxScreenError(float pixels) {
+		maxScreenError = pixels;
+	}
+
+	/** The most a chunk's level of detail may be off by on screen, see setMaxScreenError. */
+	public float getMaxScreenError() {
+		return maxScreenError;
+	}
+
+	/** The level of detail each chunk is drawn at (0 being the full surface), by chunk grid cell; -1 for empty cells. */
+	public int[] getChunkLevels() {
+		int[] levels = new int[chunks.length];
+		for (int i = 0; i < chunks.length; i++) {
+			levels[i] = (chunks[i] == null ? -1 : chunks[i].level);
+		}
+		return levels;
+	}
+
+	/** The chunk face f is drawn in. */
+	private int chunkOf(int f) {
+		int n = 1 << chunkDepth, c = 0;
+		for (int k = 2; k >= 0; k--) {
+			int i = (int)((faceCenter(f, k) - chunkMin[k]) / chunkCell[k]);
+			c = c * n + Math.max(0, Math.min(n - 1, i));
+		}
+		return c;
+	}
+
+	/** Set up an empty chunk grid over the mesh's current bounds. */
+	private void resetChunks() {
+		int n = 1 << chunkDepth;
+		chunkMin[0] = mLowerLeft.x;
+		chunkMin[1] = mLowerLeft.y;
+		chunkMin[2] = mLowerLeft.z;
+		chunkCell[0] = Math.max((mUpperRight.x - mLowerLeft.x) / n, 1e-6f);
+		chunkCell[1] = Math.max((mUpperRight.y - mLowerLeft.y) / n, 1e-6f);
+		chunkCell[2] = Math.max((mUpperRight.z - mLowerLeft.z) / n, 1e-6f);
+		chunks = new Chunk[n * n * n];
+		batches.clear();
+	}
+
+	/** Flag every chunk holding a side that could use a vert of slot idx of batch b, after the slot changed
+	 * (so its verts' normals, or the chunks using them, may have changed). */
+	private void markChunksAround(Batch b, int idx) {
+		b.chunk.dirty = true;
+		for (int k = 0; k < 3; k++) {
+			markChunksAround(b.tris[3 * idx + k]);
+		}
+	}
+
+	/** Flag every chunk holding a side that could use vertex v.
+	 * Such a side's face has its center within half a face extent of v. */
+	private void markChunksAround(int v) {
+		int dim = 1 << chunkDepth;
+		int[] lo = new int[3], hi = new int[3];
+		chunkRangeAround(v, lo, hi);
+		for (int z = lo[2]; z <= hi[2]; z++)
+			for (int y = lo[1]; y <= hi[1]; y++)
+				for (int x = lo[0]; x <= hi[0]; x++) {
+					Chunk c = chunks[(z * dim + y) * dim + x];
+					if (c != null) c.dirty = true;
+				}
+	}
+
+	/** The range of chunk grid cells (lo to hi inclusive along each axis) holding sides that could use vertex v. */
+	private void chunkRangeAround(int v, int[] lo, int[] hi) {
+		int dim = 1 << chunkDepth;
+		for (int k = 0; k < 3; k++) {
+			lo[k] = (int)Math.floor((vertPos[3 * v + k] - faceExtent / 2 - chunkMin[k]) / chunkCell[k]);
+			hi[k] = (int)Math.floor((vertPos[3 * v + k] + faceExtent / 2 - chunkMin[k]) / chunkCell[k]);
+			lo[k] = Math.max(0, Math.min(dim - 1, lo[k]));
+			hi[k] = Math.max(0, Math.min(dim - 1, hi[k]));
+		}
+	}
+
+	/** Set how finely the surface is split into chunks: 1 << depth chunks along each axis (3 to begin with).
+	 * Smaller chunks mean less to rebuild and upload after an edit, but more batches to draw.
+	 * Rebuilds the surface, so it cannot be called inside an edit.
+	 */
+	public void setChunkDepth(int depth) {
+		if (isEditing()) throw new IllegalStateException("setChunkDepth() inside an edit");
+		if (depth < 0 || depth > 6) throw new IllegalArgumentException("chunk depth " + depth + " is not in [0, 6]");
+		chunkDepth = depth;
+		if (tetCount > 0) {
+			createSurface();
+			buildBVH();
+		}
+	}
+
+	/** Number of chunks the surface is split into along each axis, see setChunkDepth. */
+	public int getChunkDepth() {
+		return chunkDepth;
+	}
+
+	/** True if side should be drawn: its tet is there, and faces either nothing or a tet of another
+	 * material which can be seen through. */
+	private boolean isSideShown(int side) {
+		int t = faceTets[side], other = faceTets[side ^ 1];
+		if (t == -1) return false;
+		return other == -1 || (tetMats[other] != tetMats[t] && isMatTransparent(tetMats[other]));
+	}
+
+	/** True if shown side adds its normal to the vertex normals. A transparent material's sides are only
+	 * lit at the boundary, so the two sides of an interface between see-through materials don't cancel out. */
+	private boolean isSideLit(int side) {
+		return faceTets[side ^ 1] == -1 || !isMatTransparent(tetMats[faceTets[side]]);
+	}
+
+	/** Vertex k (0 to 2) of side, in the side's winding. */
+	private int sideVert(int side, int k) {
+		int f = side / 2;
+		if (side % 2 == 1 && k > 0) k = 3 - k;
+		return faceVerts[3 * f + k];
+	}
+
+	/** Write side's triangle into slot idx of batch b. */
+	private void writeSide(Batch b, int idx, int side) {
+		b.tris[3 * idx] = sideVert(side, 0);
+		b.tris[3 * idx + 1] = sideVert(side, 1);
+		b.tris[3 * idx + 2] = sideVert(side, 2);
+	}
+
+	/** The batch of material index mat in chunk c, adding it (and the chunk) if need be. */
+	private Batch batch(int c, int mat) {
+		if (mat < 0 || mat >= MAX_MATS) throw new IllegalArgumentException("material index " + mat + " is not in [0, " + MAX_MATS + ")");
+		Chunk chunk = chunks[c];
+		if (chunk == null) {
+			chunk = chunks[c] = new Chunk(c);
+		}
+		for (int i = 0; i < chunk.batches.size(); i++) {
+			Batch b = batches.get(chunk.batches.get(i));
+			if (b.mat == mat) return b;
+		}
+		Batch b = new Batch(chunk, mat, batches.size());
+		batches.add(b);
+		chunk.batches.add(b.index);
+		return b;
+	}
+
+	/** The polygons of one chunk drawn with one material: slots of three (mesh) vertex indices, with a free
+	 * list of culled slots, and an index buffer into the chunk's verts. */
+	private static class Batch {
+		final Chunk chunk;
+		final int mat, index; //material index, and index in batches
+		int[] tris = new int[3 * 16]; //slots {v0, v1, v2}; has spare capacity past 3 * sides.size()
+		IntList sides = new IntList(); //side drawn in each slot, or -1 if the slot is culled (inverse of sideSlot)
+		IntList culled = new IntList(); //free list of culled slots, used as a stack
+		IntBuffer data = IntBuffer.allocate(0); //the live slots at the chunk's level of detail, as indices into its vertex buffers
+		int[][] lod; //the live slots' local verts at each level of detail, see simplifyChunk
+
+		Batch(Chunk chunk, int mat, int index) {
+			this.chunk = chunk;
+			this.mat = mat;
+			this.index = index;
+		}
+	}
+
+	/** One cell of the chunk grid: its batches, vertex buffers holding the verts they use, and its levels of detail. */
+	private static class Chunk {
+		final int id; //index in chunks
+		IntList batches = new IntList(2); //indices in batches
+		LongIntHashMap local; //mesh vertex -> local vertex
+		IntList verts; //local vertex -> mesh vertex
+		FloatBuffer vertexData, normalData, texCoordData;
+		boolean dirty; //sides, or the normals of verts, changed since the buffers were built
+		int level; //level of detail drawn
+		float[] lodError; //how far a vert moves at most at each level
+		int[][] reps; //where each local vert moves at each level (null for level 0)
+		int[] seamOf; //index of each local vert among the seam verts, or -1 if no other chunk uses it
+		int[] seamStart, seamChunks; //the other chunks using seam vert s are seamChunks[seamStart[s] .. seamStart[s + 1])
+		int[] neighbors; //all chunks sharing a seam with this one
+
+		Chunk(int id) {
+			this.id = id;
+		}
+	}
+
+
+	/** Create a new tet poking out of the first face along the line from start to end. */
+	public void createTetAtFirstFaceAlongLine(Vector3f start, Vector3f end, boolean accelerate) {
+		int f = findFirstFaceAlongLine(start, end, accelerate);
+		if (f == -1) {
+			//and no tets were created that day
+		}
+		else if (faceTets[2 * f + 1] == -1) {
+			Vector3f p0 = new Vector3f(), p1 = new Vector3f(), p2 = new Vector3f();
+			loadFace(f, p0, p1, p2);
+
+			Vector3f mid = new Vector3f(p0);
+			mid.add(p1);
+			mid.add(p2);
+			mid.scale(1f/3f);
+
+			Vector3f edge1 = new Vector3f();
+			edge1.sub(p1, p0);
+			Vector3f edge2 = new Vector3f();
+			edge2.sub(p2, p0);
+			Vector3f norm = new Vector3f();
+			norm.cross(edge1, edge2);
+			norm.normalize();
+			float l = -(edge1.length() + edge2.length()) / 2;
+			norm.scale(l);
+			mid.add(norm);
+
+			beginEdit();
+			int created = addVert(mid.x, mid.y, mid.z);
+			addTet(faceVerts[3 * f + 1], faceVerts[3 * f], faceVerts[3 * f + 2], created, 0);
+
+			//f is now interior, and the new tet's other three faces (which all use created) are boundaries
+			commit();
+		}
+	}
+
+	/** Return the first face encountered along the line between start and end, or -1 if there is none. */
+	private int findFirstFaceAlongLine(Vector3f start, Vector3f end, boolean accelerate) {
+		return findFirstFaceAlongLine(start, end, accelerate, null);
+	}
+
+	/** As findFirstFaceAlongLine, also writing the hit point into hitPoint if it is not null. */
+	private int findFirstFaceAlongLine(Vector3f start, Vector3f end, boolean accelerate, Vector3f hitPoint) {
+		if (accelerate)
+			return closestFaceAlongLine(start, end, hitPoint);
+		ArrayList<FacePointIntersectionPair> intersections = intersectLine(start, end, accelerate);
+		Point3f pos = new Point3f(start);
+		int f = -1;
+		float min_dist = Float.MAX_VALUE;
+		for (FacePointIntersectionPair pair : intersections) {
+			for (int i = 0; i < pair.points.size(); i++) {
+				float d = pos.distance(new Point3f(pair.points.get(i)));
+				if (d < min_dist) {
+					min_dist = d;
+					f = pair.face;
+					if (hitPoint != null) hitPoint.set(pair.points.get(i));
+				}
+			}
+		}
+		return f;
+	}
+
+	/** Return the first point where the line between start and end hits the surface, or null if it misses. */
+	public Vector3f findFirstPointAlongLine(Vector3f start, Vector3f end, boolean accelerate) {
+		Vector3f hit = new Vector3f();
+		return findFirstFaceAlongLine(start, end, accelerate, hit) == -1 ? null : hit;
+	}
+
+	/** Return the first Tet encountered along the line between start and end, or -1 if there is none. */
+	private int findFirstTetAlongLine(Vector3f start, Vector3f end, boolean accelerate) {
+		int f = findFirstFaceAlongLine(start, end, accelerate);
+		if (f == -1) {
+			return -1; //and no tets were found that day
+		}
+		if (faceTets[2 * f + 1] != -1) {
+			System.out.println("Face clicked on had a second tet!");
+		}
+		return faceTets[2 * f];
+	}
+
+	/** Delete first tet encountered along the line between start and end. */
+	public void deleteFirstTetAlongLine(Vector3f start, Vector3f end, boolean accelerate) {
+		int remove = findFirstTetAlongLine(start, end, accelerate);
+		if (remove != -1) deleteTet(remove);
+	}
+
+	/**********************************************************
+	 * Undo
+	 ********************************************************/
+
+	/** Record that tet t was added or removed (op), and its slot, unless undo or redo is replaying. */
+	private void journal(int op, int t) {
+		if (replaying) return;
+		undoRecords.add(op);
+		for (int k = 0; k < 4; k++) {
+			undoRecords.add(tetVerts[4 * t + k]);
+		}
+		undoRecords.add(tetMats[t]);
+		undoRecords.add(t);
+	}
+
+	/** True if there is an edit to undo. */
+	public boolean canUndo() {
+		return undoSteps.size() > 0;
+	}
+
+	/** True if there is an undone edit to redo. */
+	public boolean canRedo() {
+		return redoSteps.size() > 0;
+	}
+
+	/** Forget all undo and redo steps. */
+	public void clearHistory() {
+		undoRecords.clear();
+		undoSteps.clear();
+		redoRecords.clear();
+		redoSteps.clear();
+		islandsInStep = false;
+	}
+
+	/** Undo the last edit (one commit, or one single-tet edit, along with any islands it cut off
+	 * which deleteIslands() then deleted), through the incremental update path.
+	 *
+	 * @return false if there was nothing to undo.
+	 */
+	public boolean undo() {
+		if (!canUndo()) return false;
+		int start = undoSteps.pop();
+		replaying = true;
+		beginEdit();
+		for (int r = undoRecords.size() - JOURNAL_RECORD; r >= start; r -= JOURNAL_RECORD) {
+			replay(undoRecords, r, true);
+		}
+		commit();
+		replaying = false;
+		moveStep(undoRecords, start, redoRecords, redoSteps);
+		return true;
+	}
+
+	/** Redo the last undone edit.
+	 *
+	 * @return false if there was nothing to redo.
+	 */
+	public boolean redo() {
+		if (!canRedo()) return false;
+		int start = redoSteps.pop();
+		replaying = true;
+		beginEdit();
+		for (int r = start; r < redoRecords.size(); r += JOURNAL_RECORD) {
+			replay(redoRecords, r, false);
+		}
+		commit();
+		replaying = false;
+		moveStep(redoRecords, start, undoRecords, undoSteps);
+		return true;
+	}
+
+	/** Apply the record at r of records, or its inverse. */
+	private void replay(IntList records, int r, boolean inverse) {
+		int v0 = records.get(r + 1), v1 = records.get(r + 2), v2 = records.get(r + 3), v3 = records.get(r + 4);
+		boolean add = (records.get(r) == JOURNAL_ADD) != inverse;
+		if (add) {
+			//put the tet back in the slot it had, if it is still there as a deleted tet, so that
+			//undoing and redoing does not use up new slots
+			int t = records.get(r + 6), mat = records.get(r + 5);
+			if (t < tetCount && !isTetAlive(t) && tetVerts[4 * t] == v0 && tetVerts[4 * t + 1] == v1
+					&& tetVerts[4 * t + 2] == v2 && tetVerts[4 * t + 3] == v3 && tetMats[t] == mat && dropRemoved(t))
+				setTet(t, v0, v1, v2, v3, mat);
+			else
+				addTet(v0, v1, v2, v3, mat);
+		}
+		else {
+			int t = hasTet(v0, v1, v2, v3);
+			if (t != -1) removeTet(t);
+		}
+	}
+
+	/** Move the records of from past start onto the end of to, as a new step of toSteps. */
+	private void moveStep(IntList from, int start, IntList to, IntList toSteps) {
+		toSteps.add(to.size());
+		for (int r = start; r < from.size(); r++) {
+			to.add(from.get(r));
+		}
+		while (from.size() > start) from.pop();
+	}
+
+	/**********************************************************
+	 * Islands
+	 ********************************************************/
+
+	/** Set the vertex that holds the mesh in place (such as the planet's center): tets which can
+	 * no longer reach a tet using it through shared faces are reported as islands. -1 turns this off.
+	 * If every tet using it is removed, the largest piece left holds the mesh in place instead.
+	 */
+	public void setAnchor(int v) {
+		anchorVert = v;
+		countAnchorTets();
+	}
+
+	/** Recount the live tets using the anchor. */
+	private void countAnchorTets() {
+		anchorTets = 0;
+		if (anchorVert == -1) return;
+		for (int t = 0; t < tetCount; t++) {
+			if (isTetAlive(t) && usesVert(t, anchorVert)) anchorTets++;
+		}
+	}
+
+	public int getAnchor() {
+		return anchorVert;
+	}
+
+	/** The sets of tets cut off from the anchor by the last commit (or single-tet edit).
+	 * The tets are still in the mesh; delete them (or copy them out as debris) as needed.
+	 */
+	public ArrayList<IntList> getIslands() {
+		return islands;
+	}
+
+	/** Delete the islands found by the last commit, in one batched edit. The deletion joins the
+	 * undo step of the edit which cut the islands off, so that one undo puts both back.
+	 *
+	 * @return the number of tets removed.
+	 */
+	public int deleteIslands() {
+		ArrayList<IntList> toDelete = islands;
+		boolean extend = islandsInStep && editDepth == 0;
+		int steps = undoSteps.size();
+		int removed = 0;
+		beginEdit();
+		for (IntList island : toDelete) {
+			deleteTets(island.array(), island.size());
+			removed += island.size();
+		}
+		commit();
+		if (extend && undoSteps.size() > steps) {
+			undoSteps.pop(); //its records follow on from the last step's, which now covers them
+		}
+		return removed;
+	}
+
+	/** Find the components cut off from the anchor by the tets removed since the last commit.
+	 * Only a removed tet's live neighbors can have lost their way to the anchor, so a search
+	 * starts from each of them. It heads towards the anchor (nearest neighbor first) and stops as
+	 * soon as it reaches an anchor tet, or a tet an earlier search proved connected. Only a
+	 * search which runs dry, having walked a whole island, costs more than a short walk.
+	 *
+	 * Once no live tet uses the anchor (it has been carved away), every search runs dry, and the
+	 * largest component found is taken to be the one still holding the mesh in place.
+	 */
+	private ArrayList<IntList> findIslands() {
+		ArrayList<IntList> found = new ArrayList<IntList>();
+		if (anchorVert == -1 || islandSeeds.size() == 0) {
+			islandSeeds.clear();
+			return found;
+		}
+		float ax = vertPos[3 * anchorVert], ay = vertPos[3 * anchorVert + 1], az = vertPos[3 * anchorVert + 2];
+		int firstStamp = markStamp + 1;
+		IntList searchConnected = new IntList(); //per search since firstStamp: 1 if it reached the anchor
+		IntList stack = new IntList();
+		float[] dist = new float[4];
+
+		for (int s = 0; s < islandSeeds.size(); s++) {
+			int seed = islandSeeds.get(s);
+			if (!isTetAlive(seed) || tetMark[seed] >= firstStamp) continue; //already searched
+			int stamp = ++markStamp;
+			IntList visited = new IntList();
+			boolean connected = false;
+			stack.clear();
+			stack.add(seed);
+			tetMark[seed] = stamp;
+			while (stack.size() > 0 && !connected) {
+				int t = stack.pop();
+				visited.add(t);
+				if (usesVert(t, anchorVert)) {
+					connected = true;
+					break;
+				}
+				//push the neighbors farthest first, so the nearest to the anchor is taken next
+				int pushed = stack.size();
+				for (int i = 0; i < 4; i++) {
+					int n = tetNeighbors[4 * t + i];
+					if (n == -1 || tetMark[n] == stamp) continue;
+					if (tetMark[n] >= firstStamp && searchConnected.get(tetMark[n] - firstStamp) == 1) {
+						connected = true;
+						break;
+					}
+					tetMark[n] = stamp;
+					float d = centroidDistance2(n, ax, ay, az);
+					int j = stack.size();
+					stack.add(n);
+					dist[j - pushed] = d;
+					for (; j > pushed && dist[j - pushed - 1] < d; j--) {
+						stack.set(j, stack.get(j - 1));
+						dist[j - pushed] = dist[j - pushed - 1];
+					}
+					stack.set(j, n);
+					dist[j - pushed] = d;
+				}
+			}
+			searchConnected.add(connected ? 1 : 0);
+			if (!connected)
+				found.add(visited);
+		}
+		islandSeeds.clear();
+		if (anchorTets == 0 && found.size() > 0) {
+			int largest = 0;
+			for (int i = 1; i < found.size(); i++) {
+				if (found.get(i).size() > found.get(largest).size()) largest = i;
+			}
+			found.remove(largest);
+		}
+		return found;
+	}
+
+	/** True if tet t has v as one of its verts. */
+	private boolean usesVert(int t, int v) {
+		return tetVerts[4 * t] == v || tetVerts[4 * t + 1] == v || tetVerts[4 * t + 2] == v || tetVerts[4 * t + 3] == v;
+	}
+
+	/** Squared distance from the centroid of tet t to (x, y, z). */
+	private float centroidDistance2(int t, float x, float y, float z) {
+		float cx = 0, cy = 0, cz = 0;
+		for (int k = 0; k < 4; k++) {
+			int v = 3 * tetVerts[4 * t + k];
+			cx += vertPos[v];
+			cy += vertPos[v + 1];
+			cz += vertPos[v + 2];
+		}
+		cx = cx / 4 - x;
+		cy = cy / 4 - y;
+		cz = cz / 4 - z;
+		return cx * cx + cy * cy + cz * cz;
+	}
+
+	/**********************************************************
+	 * Brushes
+	 ********************************************************/
+
+	/** A sphere or axis-aligned box that brushes and region queries work over. */
+	private static class Region {
+		boolean sphere;
+		float cx, cy, cz, r2; //sphere center and squared radius
+		float minX, minY, minZ, maxX, maxY, maxZ; //box, or the sphere's bounds
+
+		static Region sphere(Vector3f center, float radius) {
+			Region r = new Region();
+			r.sphere = true;
+			r.cx = center.x; r.cy = center.y; r.cz = center.z;
+			r.r2 = radius * radius;
+			r.minX = center.x - radius; r.minY = center.y - radius; r.minZ = center.z - radius;
+			r.maxX = center.x + radius; r.maxY = center.y + radius; r.maxZ = center.z + radius;
+			return r;
+		}
+
+		static Region box(Vector3f min, Vector3f max) {
+			Region r = new Region();
+			r.minX = min.x; r.minY = min.y; r.minZ = min.z;
+			r.maxX = max.x; r.maxY = max.y; r.maxZ = max.z;
+			return r;
+		}
+
+		/** True if the region touches the box from (lx, ly, lz) to (ux, uy, uz). */
+		boolean overlaps(float lx, float ly, float lz, float ux, float uy, float uz) {
+			if (ux < minX || lx > maxX || uy < minY || ly > maxY || uz < minZ || lz > maxZ) return false;
+			if (!sphere) return true;
+			//squared distance from the center to the box
+			float dx = Math.max(0, Math.max(lx - cx, cx - ux));
+			float dy = Math.max(0, Math.max(ly - cy, cy - uy));
+			float dz = Math.max(0, Math.max(lz - cz, cz - uz));
+			return dx * dx + dy * dy + dz * dz <= r2;
+		}
+
+		boolean contains(float x, float y, float z) {
+			if (sphere) {
+				float dx = x - cx, dy = y - cy, dz = z - cz;
+				return dx * dx + dy * dy + dz * dz <= r2;
+			}
+			return x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ;
+		}
+	}
+
+	/** Tets whose bounding boxes touch the sphere (a conservative test). See findTets for which tets are searched. */
+	public IntList findTetsInSphere(Vector3f center, float radius) {
+		return findTets(Region.sphere(center, radius));
+	}
+
+	/** Tets whose bounding boxes touch the box from min to max. See findTets for which tets are searched. */
+	public IntList findTetsInBox(Vector3f min, Vector3f max) {
+		return findTets(Region.box(min, max));
+	}
+
+	/** Remove every tet with a vertex or its centroid in the sphere, in one batched edit.
+	 *
+	 * @return the number of tets removed.
+	 */
+	public int carveSphere(Vector3f center, float radius) {
+		return carve(Region.sphere(center, radius));
+	}
+
+	/** Remove every tet with a vertex or its centroid in the box from min to max, in one batched edit.
+	 *
+	 * @return the number of tets removed.
+	 */
+	public int carveBox(Vector3f min, Vector3f max) {
+		return carve(Region.box(min, max));
+	}
+
+	/** Put back every deleted tet with a vertex or its centroid in the sphere, in one batched edit.
+	 *
+	 * @return the number of tets added.
+	 */
+	public int fillSphere(Vector3f center, float radius) {
+		return fill(Region.sphere(center, radius));
+	}
+
+	/** Put back every deleted tet with a vertex or its centroid in the box from min to max, in one batched edit.
+	 *
+	 * @return the number of tets added.
+	 */
+	public int fillBox(Vector3f min, Vector3f max) {
+		return fill(Region.box(min, max));
+	}
+
+	/** Find the live tets whose bounds touch region. The BVH gives the surface tets in the
+	 * region, and the search then floods inwards through shared faces while the tets still touch it,
+	 * so the cost follows the size of the region rather than of the mesh. A region buried entirely
+	 * inside the mesh (touching no surface face) finds nothing.
+	 */
+	private IntList findTets(Region region) {
+		IntList found = new IntList();
+		int stamp = ++markStamp;
+		if (bvhRoot != -1)
+			findSurfaceTets(bvhRoot, region, stamp, found);
+
+		for (int i = 0; i < found.size(); i++) {
+			int t = found.get(i);
+			for (int k = 0; k < 4; k++) {
+				int other = tetNeighbors[4 * t + k];
+				if (other == -1 || tetMark[other] == stamp) continue;
+				tetMark[other] = stamp;
+				if (tetOverlaps(other, region))
+					found.add(other);
 			}
-		} while (splitPointless && tries < 4);
-		
-		if (tries == 4) {
-			node.upperRight = upRight;
-			node.lowerLeft = lowLeft;
-			node.faces = f;
-			return node;
 		}
-		
-		float volume = (upRight.x - lowLeft.x) * (upRight.y - lowLeft.y)* (upRight.z - lowLeft.z); 
-		boolean smallerFound = false;
-		
-		for(int i = 0; i < f.size(); i++) {
-			Point3f left = f.get(i).lowerLeft;
-			Point3f right = f.get(i).upperRight;
-			float faceVolume = (right.x - left.x) * (right.y - left.y) * (right.z - left.z); 
-			if (faceVolume < volume)
-				smallerFound = true;
-			if (axis == 0) {
-				if (left.x <= midpoint)
-					leftList.add(f.get(i));
-				if (right.x > midpoint)
-					rightList.add(f.get(i));
-			}
-			else if (axis == 1) {
-				if (left.y <= midpoint)
-					leftList.add(f.get(i));
-				if (right.y > midpoint)
-					rightList.add(f.get(i));
-			}
-			else {
-				if (left.z <= midpoint)
-					leftList.add(f.get(i));
-				if (right.z > midpoint)
-					rightList.add(f.get(i));
-			}
-		}
-		boolean listsIdentical = false;
-		if (leftList.size() == rightList.size()) {
-			listsIdentical = true;
-			for (int i = 0; i < leftList.size(); i++) {
-				if (!leftList.contains(rightList.get(i))) {
-					listsIdentical = false;
-					break;
+		return found;
+	}
+
+	/** Add the tets behind the shown faces of node's subtree that touch region to found. */
+	private void findSurfaceTets(int n, Region region, int stamp, IntList found) {
+		if (!region.overlaps(bvhBox[6 * n], bvhBox[6 * n + 1], bvhBox[6 * n + 2], bvhBox[6 * n + 3], bvhBox[6 * n + 4], bvhBox[6 * n + 5]))
+			return;
+		int left = bvhChild[2 * n], right = bvhChild[2 * n + 1];
+		if (left == -1) {
+			for (int i = right; i < right + bvhCount[n]; i++) {
+				int f = bvhFaces[i];
+				int t = faceTets[2 * f];
+				if (t == -1 || !isTetAlive(t) || tetMark[t] == stamp) continue;
+				if (region.overlaps(faceBounds[6 * f], faceBounds[6 * f + 1], faceBounds[6 * f + 2],
+						faceBounds[6 * f + 3], faceBounds[6 * f + 4], faceBounds[6 * f + 5])) {
+					tetMark[t] = stamp;
+					found.add(t);
 				}
 			}
+			return;
 		}
-		ArrayList<Face> list = new ArrayList<Face>();
-		list.addAll(leftList);
-		list.addAll(rightList);
-		for (int i = 0; i < f.size(); i++) {
-			if(!list.contains(f.get(i))) {
-				System.out.println("*************HEMORRHAGING FACESSSSSS***************");
-			}
-		}
-		if (smallerFound && !listsIdentical) {
-			node.left = kdTreeHelper(leftList, depth+1, leftUpRight, lowLeft);	
-			node.right = kdTreeHelper(rightList, depth+1, upRight, rightLowLeft);
+		findSurfaceTets(left, region, stamp, found);
+		findSurfaceTets(right, region, stamp, found);
+	}
+
+	/** True if the bounding box of tet t touches region. */
+	private boolean tetOverlaps(int t, Region region) {
+		float lx = Float.MAX_VALUE, ly = Float.MAX_VALUE, lz = Float.MAX_VALUE;
+		float ux = -Float.MAX_VALUE, uy = -Float.MAX_VALUE, uz = -Float.MAX_VALUE;
+		for (int k = 0; k < 4; k++) {
+			int v = 3 * tetVerts[4 * t + k];
+			lx = Math.min(lx, vertPos[v]); ux = Math.max(ux, vertPos[v]);
+			ly = Math.min(ly, vertPos[v + 1]); uy = Math.max(uy, vertPos[v + 1]);
+			lz = Math.min(lz, vertPos[v + 2]); uz = Math.max(uz, vertPos[v + 2]);
 		}
-		
-		if (node.left == null && node.right == null) { //this is a leaf node
-			node.faces = f;
+		return region.overlaps(lx, ly, lz, ux, uy, uz);
+	}
+
+	/** True if a vertex or the centroid of tet t lies in region, which is what brushes act on. */
+	private boolean tetInside(int t, Region region) {
+		float x = 0, y = 0, z = 0;
+		for (int k = 0; k < 4; k++) {
+			int v = 3 * tetVerts[4 * t + k];
+			if (region.contains(vertPos[v], vertPos[v + 1], vertPos[v + 2])) return true;
+			x += vertPos[v];
+			y += vertPos[v + 1];
+			z += vertPos[v + 2];
 		}
-		//System.out.println("**********************");
-		return node;
+		return region.contains(x / 4, y / 4, z / 4);
 	}
-	
-	private void removeVertex(Vert v) {
-		int idx2 = verts.indexOf(v);
-		culledVerts.add(new Integer(idx2));
+
+	private int carve(Region region) {
+		IntList tets = findTets(region);
+		int removed = 0;
+		beginEdit();
+		for (int i = 0; i < tets.size(); i++) {
+			int t = tets.get(i);
+			if (tetInside(t, region)) {
+				removeTet(t);
+				removed++;
+			}
+		}
+		commit();
+		return removed;
 	}
-	
-	private void removeFace(Face f) {
-		int idx = boundaries.indexOf(f);
-		if (idx != -1) {
-			arr[3 * idx] = vtx.length / 3 - 1;
-			arr[3 * idx + 1] = vtx.length / 3 - 1;
-			arr[3 * idx + 2] = vtx.length / 3 - 1;
-			mPolygonData = IntBuffer.wrap(arr);
-			/*
-			
-			*/
-			f.v0.faces.remove(f);
-			f.v1.faces.remove(f);
-			f.v2.faces.remove(f);
-			if (f.v0.faces.size() == 0)
-				removeVertex(f.v0);
-			/*else {
-				int idx2 = verts.indexOf(f.v0);
-				Vector3f norm = new Vector3f();
-				for (Face face : f.v0.faces) {
-					Vector3f norm2 = new Vector3f();
-					Vector3f temp = new Vector3f();
-					norm2.sub(face.v1.pos, face.v0.pos);
-					temp.sub(face.v2.pos, face.v0.pos);
-					norm2.cross(temp, norm2);
-					norm2.normalize();
-					norm.add(norm2);
-				}
-				if (norm.lengthSquared() == 0) {
-					norm.set(0.0f, 0.0f, 1.0f); // vert not in any interface edges
-				}
-				else {
-					norm.normalize();
-				}
-				norms[idx2].sub(norm);
-				norms[idx2].normalize();
-				normArr[3 * idx2] = norms[idx2].x;
-				normArr[3 * idx2 + 1] = norms[idx2].y;
-				normArr[3 * idx2 + 2] = norms[idx2].z;
-				mNormalData = FloatBuffer.wrap(normArr);
-			}*/
-			if (f.v1.faces.size() == 0)
-				removeVertex(f.v1);
-			/*
-			else {
-				int idx2 = verts.indexOf(f.v1);
-				Vector3f norm = new Vector3f();
-				for (Face face : f.v1.faces) {
-					Vector3f norm2 = new Vector3f();
-					Vector3f temp = new Vector3f();
-					norm2.sub(face.v1.pos, face.v0.pos);
-					temp.sub(face.v2.pos, face.v0.pos);
-					norm2.cross(temp, norm2);
-					norm2.normalize();
-					norm.add(norm2);
-				}
-				if (norm.lengthSquared() == 0) {
-					norm.set(0.0f, 0.0f, 1.0f); // vert not in any interface edges
-				}
-				else {
-					norm.normalize();
-				}
-				norms[idx2].sub(norm);
-				norms[idx2].normalize();
-				normArr[3 * idx2] = norms[idx2].x;
-				normArr[3 * idx2 + 1] = norms[idx2].y;
-				normArr[3 * idx2 + 2] = norms[idx2].z;
-				mNormalData = FloatBuffer.wrap(normArr);
-			} */
-			if (f.v2.faces.size() == 0)
-				removeVertex(f.v2);
-			/*
+
+	private int fill(Region region) {
+		int added = 0, kept = 0;
+		beginEdit();
+		for (int i = 0; i < removedTets.size(); i++) {
+			int t = removedTets.get(i);
+			if (tetInside(t, region) && canRestore(t)) {
+				setTet(t, tetVerts[4 * t], tetVerts[4 * t + 1], tetVerts[4 * t + 2], tetVerts[4 * t + 3], tetMats[t]);
+				added++;
+			}
 			else {
-				int idx2 = verts.indexOf(f.v2);
-				Vector3f norm = new Vector3f();
-				for (Face face : f.v2.faces) {
-					Vector3f norm2 = new Vector3f();
-					Vector3f temp = new Vector3f();
-					norm2.sub(face.v1.pos, face.v0.pos);
-					temp.sub(face.v2.pos, face.v0.pos);
-					norm2.cross(temp, norm2);
-					norm2.normalize();
-					norm.add(norm2);
-				}
-				if (norm.lengthSquared() == 0) {
-					norm.set(0.0f, 0.0f, 1.0f); // vert not in any interface edges
-				}
-				else {
-					norm.normalize();
-				}
-				norms[idx2].sub(norm);
-				norms[idx2].normalize();
-				normArr[3 * idx2] = norms[idx2].x;
-				normArr[3 * idx2 + 1] = norms[idx2].y;
-				normArr[3 * idx2 + 2] = norms[idx2].z;
-				mNormalData = FloatBuffer.wrap(normArr);
-			}*/
-			
+				removedTets.set(kept++, t);
+			}
 		}
-		faces.remove(f);
-		if (!culledPolygons.contains(new Integer(idx)))
-			culledPolygons.add(new Integer(idx));
+		while (removedTets.size() > kept) removedTets.pop();
+		commit();
+		return added;
 	}
-	
-	/** When deleting a tet, used to delete faces. */
-	public boolean removeFaceIfNecessary(Face f, Tet t, int i) {
-		if (f.t1 == null) { //was a boundary
-			removeFace(f);
-			return true;
+
+	/** True if deleted tet t can be put back without overlapping a live tet (see canAddTet). */
+	private boolean canRestore(int t) {
+		return canAddTet(tetVerts[4 * t], tetVerts[4 * t + 1], tetVerts[4 * t + 2], tetVerts[4 * t + 3]);
+	}
+
+	/** True if a tet over the given verts would not overlap a live tet across one of its faces:
+	 * each of its faces that already exists must have a free side, and be wound the other way
+	 * round (so the new tet lies on that side).
+	 */
+	private boolean canAddTet(int v0, int v1, int v2, int v3) {
+		return canAddFace(v0, v1, v2) && canAddFace(v0, v3, v1) &&
+				canAddFace(v0, v2, v3) && canAddFace(v3, v2, v1);
+	}
+
+	private boolean canAddFace(int a, int b, int c) {
+		int f = registry().get(faceKey(a, b, c));
+		if (f == -1) return true;
+		if (faceTets[2 * f + 1] != -1) return false;
+		//the live face must run (a, c, b) up to rotation
+		int f0 = faceVerts[3 * f], f1 = faceVerts[3 * f + 1], f2 = faceVerts[3 * f + 2];
+		return (f0 == a && f1 == c) || (f1 == a && f2 == c) || (f2 == a && f0 == c);
+	}
+
+	/**********************************************************
+	 * CSG
+	 ********************************************************/
+
+
+	/** Fork-join task setting inside[i] to whether solid contains the centroid of tet ids[i]
+	 * (or of tet i, if ids is null), for i in [lo, hi). Dead tets are left false.
+	 */
+	private class Classify extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Solid solid;
+		private final int[] ids;
+		private final boolean[] inside;
+		private final int lo, hi;
+
+		Classify(Solid solid, int[] ids, boolean[] inside, int lo, int hi) {
+			this.solid = solid;
+			this.ids = ids;
+			this.inside = inside;
+			this.lo = lo;
+			this.hi = hi;
 		}
-		else { // had a second tet - have to rearrange 
-			if (f.t0 == t) {
-				//shift face's second tet to first slot.
-				f.t0 = f.t1;
-				f.t1 = null;
-				//Swap vertex order so that the face is now pointing outwards.
-				Vert temp = f.v2; 
-				f.v2 = f.v1;
-				f.v1 = temp;
+
+		@Override
+		protected void compute() {
+			if (hi - lo > CLASSIFY_GRAIN) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new Classify(solid, ids, inside, lo, mid), new Classify(solid, ids, inside, mid, hi));
+				return;
+			}
+			for (int i = lo; i < hi; i++) {
+				int t = (ids == null ? i : ids[i]);
+				float x = 0, y = 0, z = 0;
+				for (int k = 0; k < 4; k++) {
+					int v = 3 * tetVerts[4 * t + k];
+					x += vertPos[v];
+					y += vertPos[v + 1];
+					z += vertPos[v + 2];
+				}
+				inside[i] = solid.eval(x / 4, y / 4, z / 4) < 0;
 			}
-			else if (f.t1 == t) {
-				f.t1 = null;
+		}
+	}
+
+	/** For every tet (alive or not), whether solid contains its centroid. */
+	private boolean[] classifyTets(Solid solid) {
+		boolean[] inside = new boolean[tetCount];
+		pool.invoke(new Classify(solid, null, inside, 0, tetCount));
+		return inside;
+	}
+
+	/** Remove every tet whose centroid lies inside solid, in one batched edit.
+	 * Tets are classified in parallel.
+	 *
+	 * @return the number of tets removed.
+	 */
+	public int subtract(Solid solid) {
+		return removeClassified(classifyTets(solid), true);
+	}
+
+	/** Remove every tet whose centroid lies outside solid, in one batched edit.
+	 *
+	 * @return the number of tets removed.
+	 */
+	public int intersect(Solid solid) {
+		return removeClassified(classifyTets(solid), false);
+	}
+
+	/** Put back every deleted tet whose centroid lies inside solid, in one batched edit. This only
+	 * brings back tets the mesh once had; union() also fills the rest of solid with new tets.
+	 *
+	 * @return the number of tets put back.
+	 */
+	public int restore(Solid solid) {
+		int[] ids = removedTets.toArray();
+		boolean[] inside = new boolean[ids.length];
+		pool.invoke(new Classify(solid, ids, inside, 0, ids.length));
+
+		int added = 0, kept = 0;
+		beginEdit();
+		for (int i = 0; i < ids.length; i++) {
+			int t = ids[i];
+			if (inside[i] && canRestore(t)) {
+				setTet(t, tetVerts[4 * t], tetVerts[4 * t + 1], tetVerts[4 * t + 2], tetVerts[4 * t + 3], tetMats[t]);
+				added++;
 			}
 			else {
-				System.out.println("neither of f" + i + "'s tets was toRemove!");
+				removedTets.set(kept++, t);
 			}
-			return false;
 		}
-
+		while (removedTets.size() > kept) removedTets.pop();
+		commit();
+		return added;
 	}
-	
-	/** Remove the given tetrahedron. */
-	public void deleteTet(Tet toRemove, Vector3f start, Vector3f end) {
-		//remove tet from tets list
-		this.tets.remove(toRemove);
-		
-		//cull faces if necessary
-		boolean remove0 = removeFaceIfNecessary(toRemove.f0, toRemove, 0);
-		boolean remove1 = removeFaceIfNecessary(toRemove.f1, toRemove, 1);
-		boolean remove2 = removeFaceIfNecessary(toRemove.f2, toRemove, 2);
-		boolean remove3 = removeFaceIfNecessary(toRemove.f3, toRemove, 3);
-		
-		//add faces to partially culled list
-		
-		if (remove0)
-			partiallyCulled.add(toRemove.f0);
-		if (remove1)
-			partiallyCulled.add(toRemove.f1);
-		if (remove2)
-			partiallyCulled.add(toRemove.f2);
-		if (remove3)
-			partiallyCulled.add(toRemove.f3);
-		
-		
-		ArrayList<TreeNode> toVisit = new ArrayList<TreeNode>();
-		toVisit.add(root);
-		while(toVisit.size() > 0) {
-			TreeNode curr = toVisit.remove(0);
-			if (intersectLineWithBB(start, end, new Vector3f(curr.lowerLeft), new Vector3f (curr.upperRight), false)) {
-				if (curr.left != null)
-					toVisit.add(curr.left);
-				if (curr.right != null)
-					toVisit.add(curr.right);
-				if (curr.left == null && curr.right == null) {
-					if (remove0)
-						curr.faces.remove(toRemove.f0);
-					if (remove1)
-						curr.faces.remove(toRemove.f1);
-					if (remove2)
-						curr.faces.remove(toRemove.f2);
-					if (remove3)
-						curr.faces.remove(toRemove.f3);
+
+	/** Add solid's material to the mesh, within the box from min to max, in one batched edit.
+	 * Deleted tets inside solid are put back first (see restore). The rest of solid that lies outside
+	 * the mesh is then filled with new tets of material mat: the box is split into a lattice of cubes
+	 * of side cellSize, six tets each, and every lattice tet whose centroid is in solid but not in the
+	 * mesh is added. Lattice tets are classified in parallel.
+	 * Like the other booleans this works on whole tets: the new tets don't share verts with the
+	 * mesh's own, and along its surface they can overlap its boundary tets a little rather than join them.
+	 *
+	 * @return the number of tets added, restored ones included.
+	 */
+	public int union(Solid solid, Vector3f min, Vector3f max, float cellSize, int mat) {
+		if (!(cellSize > 0)) throw new IllegalArgumentException("cellSize must be positive, not " + cellSize);
+		if (mat < 0 || mat >= MAX_MATS) throw new IllegalArgumentException("material " + mat + " out of range");
+		int nx = latticeCells(min.x, max.x, cellSize), ny = latticeCells(min.y, max.y, cellSize), nz = latticeCells(min.z, max.z, cellSize);
+		if (6L * nx * ny * nz > Integer.MAX_VALUE) throw new IllegalArgumentException("too many lattice cells for " + cellSize);
+
+		beginEdit();
+		int added = restore(solid);
+		Lattice lattice = new Lattice(new Solid.Difference(solid, asSolid()), min, cellSize, nx, ny);
+		boolean[] inside = new boolean[6 * nx * ny * nz];
+		pool.invoke(new ClassifyLattice(lattice, inside, 0, inside.length));
+
+		LongIntHashMap latticeVerts = new LongIntHashMap(); //lattice point index -> vert
+		int[] v = new int[4];
+		for (int i = 0; i < inside.length; i++) {
+			if (!inside[i]) continue;
+			int cube = i / 6, k = 4 * (i % 6);
+			int cx = cube % nx, cy = (cube / nx) % ny, cz = cube / nx / ny;
+			for (int j = 0; j < 4; j++) {
+				int c = LATTICE_TETS[k + j];
+				int px = cx + (c & 1), py = cy + ((c >> 1) & 1), pz = cz + (c >> 2);
+				long key = ((long)pz * (ny + 1) + py) * (nx + 1) + px;
+				v[j] = latticeVerts.get(key);
+				if (v[j] == -1) {
+					v[j] = addVert(min.x + px * cellSize, min.y + py * cellSize, min.z + pz * cellSize);
+					latticeVerts.put(key, v[j]);
 				}
 			}
+			addTet(v[0], v[1], v[2], v[3], mat);
+			added++;
 		}
-		
-	
-		//System.out.println("Deleted tet!");
-		ArrayList<Face> newBound = recalculateBoundaries();
-		ArrayList<Face> toAdds = new ArrayList<Face>();
-		for(int i = 0; i < newBound.size(); i++) {
-			Face toAdd = newBound.get(i);
-			if(!boundaries.contains(toAdd)) {
-				toAdds.add(toAdd);
-			}
-		}
-		boolean recompute = false;
-		System.out.println("ToAdds.size " + toAdds.size());
-		System.out.println("culled.size " + culledPolygons.size());
-		System.out.println(culledPolygons);
-		if (toAdds.size() <= culledPolygons.size()) {
-			for(int i = 0; i < toAdds.size(); i++) {
-				Face toAdd = newBound.get(i);
-				System.out.println("Adding Face: " + verts.indexOf(toAdd.v0) + ", " + verts.indexOf(toAdd.v1) + ", " + verts.indexOf(toAdd.v2));
-				int idx = culledPolygons.remove(0);
-				System.out.println("Adding at idx: " + idx);
-				System.out.println("Replacing " + arr[3 * idx] + ", " + arr[3*idx+1] + ", " + arr[3*idx+2]);
-				arr[3 * idx] = verts.indexOf(toAdd.v0);
-				arr[3 * idx + 1] = verts.indexOf(toAdd.v1);
-				arr[3 * idx + 2] = verts.indexOf(toAdd.v2);
-				System.out.println("Replaced " + arr[3 * idx] + ", " + arr[3*idx+1] + ", " + arr[3*idx+2]);
-
-			}
-			mPolygonData = IntBuffer.wrap(arr);
-			return;
+		commit();
+		return added;
+	}
+
+	/** Number of lattice cubes of side cellSize needed to cover [lo, hi], at least one. */
+	private static int latticeCells(float lo, float hi, float cellSize) {
+		return (int)Math.max(1, Math.min(Integer.MAX_VALUE, Math.ceil((hi - lo) / cellSize)));
+	}
+
+	/** The cube lattice union() fills a solid from: nx by ny cubes per layer of side cell, starting at
+	 * origin, and the solid its tets are classified against. */
+	private static class Lattice {
+		final Solid solid;
+		final float ox, oy, oz, cell;
+		final int nx, ny;
+
+		Lattice(Solid solid, Vector3f origin, float cell, int nx, int ny) {
+			this.solid = solid;
+			this.ox = origin.x;
+			this.oy = origin.y;
+			this.oz = origin.z;
+			this.cell = cell;
+			this.nx = nx;
+			this.ny = ny;
 		}
-		else {
-			int[] temp = new int[arr.length + toAdds.size() * 3];
-			for(int i = 0; i < arr.length; i++) {
-				temp[i] = arr[i];
-			}
-			int i = 0;
-			for (Face toAdd : toAdds) {
-				int idx = arr.length / 3 + i++;
-				System.out.println("Adding at idx: " + idx);
-				temp[3 * idx] = verts.indexOf(toAdd.v0);
-				temp[3 * idx + 1] = verts.indexOf(toAdd.v1);
-				temp[3 * idx + 2] = verts.indexOf(toAdd.v2);
-				boundaries.add(toAdd);
+	}
+
+	/** Fork-join task setting inside[i] to whether the lattice's solid contains the centroid of lattice
+	 * tet i (tet i % 6 of LATTICE_TETS in cube i / 6), for i in [lo, hi).
+	 */
+	private static class ClassifyLattice extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Lattice lattice;
+		private final boolean[] inside;
+		private final int lo, hi;
+
+		ClassifyLattice(Lattice lattice, boolean[] inside, int lo, int hi) {
+			this.lattice = lattice;
+			this.inside = inside;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo > CLASSIFY_GRAIN) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new ClassifyLattice(lattice, inside, lo, mid), new ClassifyLattice(lattice, inside, mid, hi));
+				return;
+			}
+			Lattice l = lattice;
+			for (int i = lo; i < hi; i++) {
+				int cube = i / 6, k = 4 * (i % 6);
+				//corner offsets of the tet, summed, in units of a quarter cell
+				int sx = 0, sy = 0, sz = 0;
+				for (int j = 0; j < 4; j++) {
+					int c = LATTICE_TETS[k + j];
+					sx += c & 1;
+					sy += (c >> 1) & 1;
+					sz += c >> 2;
+				}
+				float x = l.ox + (4 * (cube % l.nx) + sx) * l.cell / 4;
+				float y = l.oy + (4 * ((cube / l.nx) % l.ny) + sy) * l.cell / 4;
+				float z = l.oz + (4 * (cube / l.nx / l.ny) + sz) * l.cell / 4;
+				inside[i] = l.solid.eval(x, y, z) < 0;
 			}
-			
-			arr = temp;
-			mPolygonData = IntBuffer.wrap(arr);
-			return;
-			//createSurface(); //would be nice to not have to do this every time.
 		}
-		//System.out.println("Recomputing surface**************");
-		//createSurface();
+	}
 
+	/** Remove every tet whose centroid lies inside other. */
+	public int subtract(TetMesh other) {
+		return subtract(other.asSolid());
 	}
-	
 
-	/** Create a new tet poking out of the first face along the line from start to end. */
-	public void createTetAtFirstFaceAlongLine(Vector3f start, Vector3f end, boolean accelerate) {
-		Face f = findFirstFaceAlongLine(start, end, false);
-		if (f == null) {
-			//and no tets were created that day
-		}
-		else if (f.t1 == null) {
-			//Vector3f midpt = new Vector3f(f.center);
-			//midpt.add(f.v0.pos, f.v1.pos);
-			//midpt.scale(.5f);
-			//midpt.add(f.v2.pos);
-			//midpt.scale(.5f);
-		
-			Vector3f mid = new Vector3f(f.v0.pos);
-			mid.add(f.v1.pos);
-			mid.add(f.v2.pos);
-			mid.scale(1f/3f);
-			
-			Vector3f edge1 = new Vector3f();
-			edge1.sub(f.v1.pos, f.v0.pos);
-			Vector3f edge2 = new Vector3f();
-			edge2.sub(f.v2.pos, f.v0.pos);
-			Vector3f norm = new Vector3f();
-			norm.cross(edge1, edge2);
-			norm.normalize();
-			float l = -(edge1.length() + edge2.length()) / 2;
-			norm.scale(l);
-			mid.add(norm);
-			
-			//System.out.println("v0: " + f.v0.pos + ", v1: " + f.v1.pos + ", v2: " + f.v2.pos + ", new: " + midpt);
-			
-			Vert created = new Vert(mid);
-			verts.add(created);
-			
-			
-			Tet tet = new Tet(f.v1, f.v0, f.v2, created, 0);
-			System.out.println(tet);
-			tets.add(tet);
-			
-			createSurface();
-		}
+	/** Remove every tet whose centroid lies outside other. */
+	public int intersect(TetMesh other) {
+		return intersect(other.asSolid());
 	}
-	
-	/** Return the first face encountered along the line between start and end. */
-	private Face findFirstFaceAlongLine(Vector3f start, Vector3f end, boolean accelerate) {
-		ArrayList<FacePointIntersectionPair> intersections = intersectLine(start, end, accelerate);
-		Point3f pos = new Point3f(start);
-		Face f = null;
-		float min_dist = Float.MAX_VALUE;
-		for (FacePointIntersectionPair pair : intersections) {
-			for (int i = 0; i < pair.points.size(); i++) {
-				float d = pos.distance(new Point3f(pair.points.get(i)));
-				if (d < min_dist) {
-					min_dist = d;
-					f = pair.face;
+
+	/** Copy in every tet of other whose centroid lies outside this mesh, in one batched edit.
+	 * Verts at exactly the same position as one of ours are shared, so where the two meshes
+	 * meet face to face the joining faces become interior.
+	 *
+	 * @return the number of tets added.
+	 */
+	public int union(TetMesh other) {
+		boolean[] inside = other.classifyTets(asSolid());
+
+		//index our verts by exact position
+		LongIntHashMap byPos = new LongIntHashMap(vertCount);
+		for (int v = 0; v < vertCount; v++) {
+			byPos.put(positionKey(vertPos[3 * v], vertPos[3 * v + 1], vertPos[3 * v + 2]), v);
+		}
+		int[] vertMap = new int[other.vertCount];
+		Arrays.fill(vertMap, -1);
+
+		int added = 0;
+		beginEdit();
+		for (int t = 0; t < other.tetCount; t++) {
+			if (!other.isTetAlive(t) || inside[t]) continue;
+			int[] v = new int[4];
+			for (int k = 0; k < 4; k++) {
+				int ov = other.tetVerts[4 * t + k];
+				if (vertMap[ov] == -1) {
+					float x = other.vertPos[3 * ov], y = other.vertPos[3 * ov + 1], z = other.vertPos[3 * ov + 2];
+					int mine = byPos.get(positionKey(x, y, z));
+					if (mine == -1 || vertPos[3 * mine] != x || vertPos[3 * mine + 1] != y || vertPos[3 * mine + 2] != z)
+						mine = addVert(x, y, z);
+					vertMap[ov] = mine;
 				}
+				v[k] = vertMap[ov];
+			}
+			if (canAddTet(v[0], v[1], v[2], v[3])) {
+				addTet(v[0], v[1], v[2], v[3], other.tetMats[t]);
+				added++;
 			}
 		}
-		return f;
+		commit();
+		return added;
 	}
-	
-	/** Return the first Tet encountered along the line between start and end. */
-	private Tet findFirstTetAlongLine(Vector3f start, Vector3f end, boolean accelerate) {
-		Face f = findFirstFaceAlongLine(start, end, accelerate);
-		if (f == null) {
-			return null; //and no tets were found that day
+
+	/** Hash key for a vertex position (collisions are possible, so check the position it leads to). */
+	private static long positionKey(float x, float y, float z) {
+		long key = Float.floatToIntBits(x) * 0x9E3779B97F4A7C15L;
+		key = (key ^ Float.floatToIntBits(y)) * 0xC2B2AE3D27D4EB4FL;
+		key = (key ^ Float.floatToIntBits(z)) * 0x165667B19E3779F9L;
+		return key == -1 ? 0 : key;
+	}
+
+	/** A snapshot of this mesh's current boundary as a Solid, for CSG against another mesh. */
+	public Solid asSolid() {
+		int n = 0;
+		for (int f = 0; f < faceCount; f++) {
+			if (isFaceAlive(f) && faceTets[2 * f + 1] == -1) n++;
 		}
-		if (f.t1 != null) {
-			System.out.println("Face clicked on had a second tet!");
+		float[] tris = new float[9 * n];
+		int i = 0;
+		for (int f = 0; f < faceCount; f++) {
+			if (!isFaceAlive(f) || faceTets[2 * f + 1] != -1) continue;
+			for (int k = 0; k < 3; k++) {
+				int v = 3 * faceVerts[3 * f + k];
+				tris[i++] = vertPos[v];
+				tris[i++] = vertPos[v + 1];
+				tris[i++] = vertPos[v + 2];
+			}
 		}
-		return f.t0;
+		return new TetMeshSolid(tris, n);
 	}
-	
-	/** Delete first tet encountered along the line between start and end. */
-	public void deleteFirstTetAlongLine(Vector3f start, Vector3f end, boolean accelerate) {
-		Tet remove = findFirstTetAlongLine(start, end, accelerate);
-		if (remove != null) deleteTet(remove, start, end);
+
+	/** Remove every live tet whose classification equals which, in one batched edit. */
+	private int removeClassified(boolean[] inside, boolean which) {
+		int removed = 0;
+		beginEdit();
+		for (int t = 0; t < inside.length; t++) {
+			if (isTetAlive(t) && inside[t] == which) {
+				removeTet(t);
+				removed++;
+			}
+		}
+		commit();
+		return removed;
 	}
 
 	/**********************************************************
@@ -588,10 +2519,10 @@ public class TetMesh extends Mesh implements OpenGLResourceObject {
 	
 	private class FacePointIntersectionPair {
 		public ArrayList<Vector3f> points;
-		public Face face;
+		public int face;
 		public IntersectionType type;
 		
-		public FacePointIntersectionPair (PointIntersection intersection, Face f) {
+		public FacePointIntersectionPair (PointIntersection intersection, int f) {
 			this.type = intersection.type;
 			this.face = f;
 			this.points = intersection.points;	
@@ -995,343 +2926,328 @@ public class TetMesh extends Mesh implements OpenGLResourceObject {
 		}
 	}
 	
+	/** Every face the line through start and end passes through, by testing only the faces in BVH
+	 * leaves whose boxes the line crosses if accelerate is set, or every face if not.
+	 */
 	public ArrayList<FacePointIntersectionPair> intersectLine(Vector3f start, Vector3f end, boolean accelerate) {
 		GVector l = computePluckerCoord(start, end);
 		ArrayList<FacePointIntersectionPair> hit = new ArrayList<FacePointIntersectionPair>();
-		int faceCount = 0;
-		if (accelerate) {
-			ArrayList<TreeNode> toVisit = new ArrayList<TreeNode>();
-			toVisit.add(root);
-			while(toVisit.size() > 0) {
-				TreeNode current = toVisit.remove(0);
-				if (intersectLineWithBB(start, end, new Vector3f(current.lowerLeft), new Vector3f(current.upperRight), false)) {
-					if (current.left != null)
-						toVisit.add(current.left);
-					if (current.right != null)
-						toVisit.add(current.right);
-					if (current.left == null && current.right == null) {
-						for (Face f : current.faces) {
-							if (!partiallyCulled.contains(f)) {
-								faceCount++;
-								PointIntersection interPos = intersectFace(f.v0.pos, f.v1.pos, f.v2.pos, l, start, end, false);
-								if (interPos.type != IntersectionType.NONE) {
-									hit.add(new FacePointIntersectionPair(interPos, f));
-								}
-							}
-						}
-					}
-				}
-			}
-		}
-		else {
-		
-			for (Face f : faces) {
-				PointIntersection interPos = intersectFace(f.v0.pos, f.v1.pos, f.v2.pos, l, start, end, false);
-				if (interPos.type != IntersectionType.NONE) {
-					hit.add(new FacePointIntersectionPair(interPos, f));
-				}
-				faceCount++;
+		Vector3f p0 = new Vector3f(), p1 = new Vector3f(), p2 = new Vector3f();
+		queryNodes = 0;
+		queryFaces = 0;
+		IntList faces = accelerate ? facesAlongLine(start, end, false) : null;
+		int n = accelerate ? faces.size() : faceCount;
+		for (int i = 0; i < n; i++) {
+			int f = accelerate ? faces.get(i) : i;
+			if (!isFaceAlive(f)) continue;
+			queryFaces++;
+			loadFace(f, p0, p1, p2);
+			PointIntersection interPos = intersectFace(p0, p1, p2, l, start, end, false);
+			if (interPos.type != IntersectionType.NONE) {
+				hit.add(new FacePointIntersectionPair(interPos, f));
 			}
 		}
-		System.out.println(faceCount);
-		
 		return hit; //return hitPos also!!
 	}
-	
+
+	/** As intersectLine, but only for the part of the line between start and end. */
 	public ArrayList<FacePointIntersectionPair> intersectLineSegment(Vector3f start, Vector3f end, boolean accelerate) {
 		GVector l = computePluckerCoord(start, end);
 		ArrayList<FacePointIntersectionPair> hit = new ArrayList<FacePointIntersectionPair>();
-		
-		if (accelerate) {
-			ArrayList<TreeNode> toVisit = new ArrayList<TreeNode>();
-			toVisit.add(root);
-			while(toVisit.size() > 0) {
-				TreeNode current = toVisit.remove(0);
-				if (intersectLineWithBB(start, end, new Vector3f(current.lowerLeft), new Vector3f(current.upperRight), false)) {
-					if (current.left != null)
-						toVisit.add(current.left);
-					if (current.right != null)
-						toVisit.add(current.right);
-					if (current.left == null && current.right == null) {
-						for (Face f : current.faces) {
-							if (!partiallyCulled.contains(f)) {
-								PointIntersection intersection = intersectFace(f.v0.pos, f.v1.pos, f.v2.pos, l, start, end, false);
-								if (intersection.type == IntersectionType.NONE)
-									continue;
-								else if (intersection.type == IntersectionType.PROPER || 
-										intersection.type == IntersectionType.EDGE ||
-										intersection.type == IntersectionType.VERTEX) {
-									Vector3f vert0 = null;
-									Vector3f vert1 = null;
-									Vector3f vert2 = null;
-									if (intersection.type == IntersectionType.VERTEX) {
-										if (!f.v0.pos.equals(intersection.points.get(0))) {
-											vert0 = f.v0.pos;
-											vert1 = f.v1.pos;
-											vert2 = f.v2.pos;
-										}
-										else if (!f.v1.pos.equals(intersection.points.get(0))) {
-											vert0 = f.v1.pos;
-											vert1 = f.v0.pos;
-											vert2 = f.v2.pos;
-										}				}
-									else {
-										vert0 = f.v0.pos;
-										vert1 = f.v1.pos;
-										vert2 = f.v2.pos;
-									}
-									if (vert0 == null || vert1 == null || vert2 == null) {
-										System.out.println("************THIS REALLY SHOULDN'T HAPPEN**************");
-										continue;
-									}
-									GVector l2 = computePluckerCoord(start, vert0);
-									GVector l3 = computePluckerCoord(vert0, end);
-									GVector l4 = computePluckerCoord(vert1, vert2);
-									float s1 = computeSideOperator(l4, l3);
-									float s2 = computeSideOperator(l4, l2);
-									if (s1 == 0 || s2 == 0) {
-										if (intersection.type == IntersectionType.PROPER)
-											intersection.type = IntersectionType.PROPER_END;
-										else if (intersection.type == IntersectionType.VERTEX)
-											intersection.type = IntersectionType.VERTEX_END;
-										else if (intersection.type == IntersectionType.EDGE)
-											intersection.type = IntersectionType.EDGE_END;
-									}
-									else if ((s1 < 0 && s2 > 0) || (s1 > 0 && s2 < 0)) {
-										continue;
-									}
-									hit.add(new FacePointIntersectionPair(intersection, f));
-								}
-								else { //coplanar
-									PointIntersection inter1 = intersectLineSegmentLineSegment(start, end, f.v0.pos, f.v1.pos);
-									PointIntersection inter2 = intersectLineSegmentLineSegment(start, end, f.v1.pos, f.v2.pos);
-									PointIntersection inter3 = intersectLineSegmentLineSegment(start, end, f.v2.pos, f.v0.pos);
-									ArrayList<Vector3f> temp = new ArrayList<Vector3f>();
-									if (inter1.type == IntersectionType.LINE)
-										temp.add(inter1.points.get(0));
-									if (inter2.type == IntersectionType.LINE)
-										temp.add(inter2.points.get(0));
-									if (inter3.type == IntersectionType.LINE)
-										temp.add(inter3.points.get(0));
-									
-									if (temp.size() == 3) {
-										intersection.type = IntersectionType.COPLANAR_VERTEX_EDGE;
-										for(int i = 0; i < temp.size(); i++) {
-											for(int j = i+1; j < temp.size(); j++) {
-												if(temp.get(i).equals(temp.get(j))) {
-													temp.remove(j);
-													break;
-												}
-											}
-										}
-										intersection.points = temp;
-										hit.add(new FacePointIntersectionPair(intersection, f));
-										continue;
-									}
-									else if (temp.size() == 2) {
-										intersection.type = IntersectionType.COPLANAR_TWO_EDGES;
-										intersection.points = temp;
-										hit.add(new FacePointIntersectionPair(intersection, f));
-										continue;
-									}
-									else if (temp.size() == 1) {
-										intersection.type = IntersectionType.COPLANAR_EDGE;
-										intersection.points = temp;
-										hit.add(new FacePointIntersectionPair(intersection, f));
-										continue;
-									}
-									intersection.type = IntersectionType.COPLANAR_CONTAINED;
-									intersection.points = null;
-									hit.add(new FacePointIntersectionPair(intersection, f));
-									continue;
-								}	
-							}
+		Vector3f p0 = new Vector3f(), p1 = new Vector3f(), p2 = new Vector3f();
+		queryNodes = 0;
+		queryFaces = 0;
+		IntList faces = accelerate ? facesAlongLine(start, end, true) : null;
+		int n = accelerate ? faces.size() : faceCount;
+		for (int i = 0; i < n; i++) {
+			int f = accelerate ? faces.get(i) : i;
+			if (!isFaceAlive(f)) continue;
+			queryFaces++;
+			intersectSegmentWithFace(f, l, start, end, p0, p1, p2, hit);
+		}
+		return hit;
+	}
+
+	/** The drawn face hit by the line through start and end nearest to start (on either side of it),
+	 * or -1 if the line misses, writing the hit point into hitPoint if it is not null.
+	 * The BVH is walked nearest box first, skipping boxes farther along the line than the nearest hit
+	 * so far, so the walk usually ends in the few leaves around the hit. Of faces hit at the same
+	 * distance the lowest index wins, as with the brute force search.
+	 */
+	private int closestFaceAlongLine(Vector3f start, Vector3f end, Vector3f hitPoint) {
+		queryNodes = 0;
+		queryFaces = 0;
+		if (bvhRoot == -1)
+			return -1;
+		GVector l = computePluckerCoord(start, end);
+		Vector3f p0 = new Vector3f(), p1 = new Vector3f(), p2 = new Vector3f();
+		Point3f pos = new Point3f(start);
+		bvhLine.set(start, end);
+		float length = pos.distance(new Point3f(end));
+		int best = -1;
+		float bestDist = Float.MAX_VALUE;
+
+		//nodes still to visit, each with the distance from start to where the line enters its box
+		int top = 0;
+		bvhStack[top] = bvhRoot;
+		bvhStackDist[top++] = 0;
+		while (top > 0) {
+			int n = bvhStack[--top];
+			//(a little slack, as the boxes and hit points are rounded differently)
+			if (bvhStackDist[top] > bestDist * (1 + 1e-5f))
+				continue;
+			queryNodes++;
+			int left = bvhChild[2 * n], right = bvhChild[2 * n + 1];
+			if (left == -1) {
+				for (int i = right; i < right + bvhCount[n]; i++) {
+					int f = bvhFaces[i];
+					if (!isFaceAlive(f)) continue;
+					queryFaces++;
+					loadFace(f, p0, p1, p2);
+					PointIntersection hit = intersectFace(p0, p1, p2, l, start, end, false);
+					if (hit.type == IntersectionType.NONE) continue;
+					for (int j = 0; j < hit.points.size(); j++) {
+						float d = pos.distance(new Point3f(hit.points.get(j)));
+						if (d < bestDist || (d == bestDist && f < best)) {
+							bestDist = d;
+							best = f;
+							if (hitPoint != null) hitPoint.set(hit.points.get(j));
 						}
 					}
 				}
+				continue;
+			}
+			float leftDist = bvhLineDistance(left) * length;
+			float rightDist = bvhLineDistance(right) * length;
+			ensureBVHStack(top + 2);
+			//the nearer child goes on top, to be visited first; children the line misses not at all
+			boolean leftFirst = leftDist <= rightDist;
+			float farDist = leftFirst ? rightDist : leftDist, nearDist = leftFirst ? leftDist : rightDist;
+			if (farDist != Float.POSITIVE_INFINITY) {
+				bvhStack[top] = leftFirst ? right : left;
+				bvhStackDist[top++] = farDist;
+			}
+			if (nearDist != Float.POSITIVE_INFINITY) {
+				bvhStack[top] = leftFirst ? left : right;
+				bvhStackDist[top++] = nearDist;
 			}
 		}
-		else {
-			for (Face f: faces) {
-				PointIntersection intersection = intersectFace(f.v0.pos, f.v1.pos, f.v2.pos, l, start, end, false);
-				if (intersection.type == IntersectionType.NONE)
-					continue;
-				else if (intersection.type == IntersectionType.PROPER || 
-						intersection.type == IntersectionType.EDGE ||
-						intersection.type == IntersectionType.VERTEX) {
-					Vector3f vert0 = null;
-					Vector3f vert1 = null;
-					Vector3f vert2 = null;
-					if (intersection.type == IntersectionType.VERTEX) {
-						if (!f.v0.pos.equals(intersection.points.get(0))) {
-							vert0 = f.v0.pos;
-							vert1 = f.v1.pos;
-							vert2 = f.v2.pos;
-						}
-						else if (!f.v1.pos.equals(intersection.points.get(0))) {
-							vert0 = f.v1.pos;
-							vert1 = f.v0.pos;
-							vert2 = f.v2.pos;
-						}				}
-					else {
-						vert0 = f.v0.pos;
-						vert1 = f.v1.pos;
-						vert2 = f.v2.pos;
-					}
-					if (vert0 == null || vert1 == null || vert2 == null) {
-						System.out.println("************THIS REALLY SHOULDN'T HAPPEN**************");
-						continue;
-					}
-					GVector l2 = computePluckerCoord(start, vert0);
-					GVector l3 = computePluckerCoord(vert0, end);
-					GVector l4 = computePluckerCoord(vert1, vert2);
-					float s1 = computeSideOperator(l4, l3);
-					float s2 = computeSideOperator(l4, l2);
-					if (s1 == 0 || s2 == 0) {
-						if (intersection.type == IntersectionType.PROPER)
-							intersection.type = IntersectionType.PROPER_END;
-						else if (intersection.type == IntersectionType.VERTEX)
-							intersection.type = IntersectionType.VERTEX_END;
-						else if (intersection.type == IntersectionType.EDGE)
-							intersection.type = IntersectionType.EDGE_END;
-					}
-					else if ((s1 < 0 && s2 > 0) || (s1 > 0 && s2 < 0)) {
-						continue;
-					}
-					hit.add(new FacePointIntersectionPair(intersection, f));
+		return best;
+	}
+
+	/** Make room for n entries on the stack the BVH walks share. */
+	private void ensureBVHStack(int n) {
+		if (n <= bvhStack.length) return;
+		bvhStack = Arrays.copyOf(bvhStack, 2 * n);
+		bvhStackDist = Arrays.copyOf(bvhStackDist, 2 * n);
+	}
+
+	/** Where bvhLine comes nearest its start inside BVH node n's box: the t of smallest size, as a
+	 * positive number, or infinity if the line misses the box.
+	 */
+	private float bvhLineDistance(int n) {
+		if (!bvhLine.hits(bvhBox, 6 * n, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY))
+			return Float.POSITIVE_INFINITY;
+		return bvhLine.near > 0 ? bvhLine.near : (bvhLine.far < 0 ? -bvhLine.far : 0);
+	}
+
+	/** The faces in the BVH leaves whose boxes the line through start and end crosses (between start
+	 * and end if segment is set). Counts the nodes visited in queryNodes.
+	 */
+	private IntList facesAlongLine(Vector3f start, Vector3f end, boolean segment) {
+		IntList faces = new IntList();
+		if (bvhRoot == -1)
+			return faces;
+		bvhLine.set(start, end);
+		//(a little slack on a segment, for faces touching its ends)
+		float tMin = segment ? -1e-4f : Float.NEGATIVE_INFINITY, tMax = segment ? 1 + 1e-4f : Float.POSITIVE_INFINITY;
+		int top = 0;
+		bvhStack[top++] = bvhRoot;
+		while (top > 0) {
+			int n = bvhStack[--top];
+			queryNodes++;
+			if (!bvhLine.hits(bvhBox, 6 * n, tMin, tMax))
+				continue;
+			int left = bvhChild[2 * n], right = bvhChild[2 * n + 1];
+			if (left == -1) {
+				for (int i = right; i < right + bvhCount[n]; i++) {
+					faces.add(bvhFaces[i]);
 				}
-				else { //coplanar
-					PointIntersection inter1 = intersectLineSegmentLineSegment(start, end, f.v0.pos, f.v1.pos);
-					PointIntersection inter2 = intersectLineSegmentLineSegment(start, end, f.v1.pos, f.v2.pos);
-					PointIntersection inter3 = intersectLineSegmentLineSegment(start, end, f.v2.pos, f.v0.pos);
-					ArrayList<Vector3f> temp = new ArrayList<Vector3f>();
-					if (inter1.type == IntersectionType.LINE)
-						temp.add(inter1.points.get(0));
-					if (inter2.type == IntersectionType.LINE)
-						temp.add(inter2.points.get(0));
-					if (inter3.type == IntersectionType.LINE)
-						temp.add(inter3.points.get(0));
-					
-					if (temp.size() == 3) {
-						intersection.type = IntersectionType.COPLANAR_VERTEX_EDGE;
-						for(int i = 0; i < temp.size(); i++) {
-							for(int j = i+1; j < temp.size(); j++) {
-								if(temp.get(i).equals(temp.get(j))) {
-									temp.remove(j);
-									break;
-								}
-							}
-						}
-						intersection.points = temp;
-						hit.add(new FacePointIntersectionPair(intersection, f));
-						continue;
-					}
-					else if (temp.size() == 2) {
-						intersection.type = IntersectionType.COPLANAR_TWO_EDGES;
-						intersection.points = temp;
-						hit.add(new FacePointIntersectionPair(intersection, f));
-						continue;
-					}
-					else if (temp.size() == 1) {
-						intersection.type = IntersectionType.COPLANAR_EDGE;
-						intersection.points = temp;
-						hit.add(new FacePointIntersectionPair(intersection, f));
-						continue;
-					}
-					intersection.type = IntersectionType.COPLANAR_CONTAINED;
-					intersection.points = null;
-					hit.add(new FacePointIntersectionPair(intersection, f));
-					continue;
-				}	
+			}
+			else {
+				//left on top, so that the walk mostly runs forwards through the arrays
+				ensureBVHStack(top + 2);
+				bvhStack[top++] = right;
+				bvhStack[top++] = left;
 			}
 		}
-		return hit;
+		return faces;
 	}
-	
-	/** Returns true if the line (just segment if segment is true)
-	 * between start and end intersects
-	 * the box between corners min and max.
+
+	/** Intersect the segment from start to end (with Plucker coords l) against face f, adding any hit to hit.
+	 * p0, p1 and p2 are scratch vectors for the face's vertex positions.
 	 */
-	public boolean intersectLineWithBB(Vector3f start, Vector3f end, Vector3f min, Vector3f max, boolean segment) {
-		
-		//Convert into a ray...
-		Vector3f dir = new Vector3f(end);
-		dir.sub(start);
-		float maxLen = dir.length();
-		dir.normalize();
-		
-		//check six faces...
-		float t, x, y, z;
-		
-		
-		if (dir.x != 0.0f) {
-			//min x
-			t = (min.x - start.x) / dir.x;
-			if (!segment || (t <= maxLen && t >= 0.0f)) {
-				y = dir.y * t + start.y;
-				z = dir.z * t + start.z;
-				if (y >= min.y && y <= max.y && z >= min.z && z <= max.z) return true;
+	private void intersectSegmentWithFace(int f, GVector l, Vector3f start, Vector3f end,
+			Vector3f p0, Vector3f p1, Vector3f p2, ArrayList<FacePointIntersectionPair> hit) {
+		loadFace(f, p0, p1, p2);
+		PointIntersection intersection = intersectFace(p0, p1, p2, l, start, end, false);
+		if (intersection.type == IntersectionType.NONE)
+			return;
+		else if (intersection.type == IntersectionType.PROPER ||
+				intersection.type == IntersectionType.EDGE ||
+				intersection.type == IntersectionType.VERTEX) {
+			Vector3f vert0 = null;
+			Vector3f vert1 = null;
+			Vector3f vert2 = null;
+			if (intersection.type == IntersectionType.VERTEX) {
+				if (!p0.equals(intersection.points.get(0))) {
+					vert0 = p0;
+					vert1 = p1;
+					vert2 = p2;
+				}
+				else if (!p1.equals(intersection.points.get(0))) {
+					vert0 = p1;
+					vert1 = p0;
+					vert2 = p2;
+				}
 			}
-			
-			//max x
-			t = (max.x - start.x) / dir.x;
-			if (!segment || (t <= maxLen && t >= 0.0f)) {
-				y = dir.y * t + start.y;
-				z = dir.z * t + start.z;
-				if (y >= min.y && y <= max.y && z >= min.z && z <= max.z) return true;
+			else {
+				vert0 = p0;
+				vert1 = p1;
+				vert2 = p2;
 			}
-		}
-		else {
-			System.out.println("zero x");
-		}
-		
-		if (dir.y != 0.0f) {
-			//min y
-			t = (min.y - start.y) / dir.y;
-			if (!segment || (t <= maxLen && t >= 0.0f)) {
-				x = dir.x * t + start.x;
-				z = dir.z * t + start.z;
-				if (x >= min.x && x <= max.x && z >= min.z && z <= max.z) return true;
+			if (vert0 == null || vert1 == null || vert2 == null) {
+				System.out.println("************THIS REALLY SHOULDN'T HAPPEN**************");
+				return;
 			}
-			
-			//max y
-			t = (max.y - start.y) / dir.y;
-			if (!segment || (t <= maxLen && t >= 0.0f)) {
-				x = dir.x * t + start.x;
-				z = dir.z * t + start.z;
-				if (x >= min.x && x <= max.x && z >= min.z && z <= max.z) return true;
+			GVector l2 = computePluckerCoord(start, vert0);
+			GVector l3 = computePluckerCoord(vert0, end);
+			GVector l4 = computePluckerCoord(vert1, vert2);
+			float s1 = computeSideOperator(l4, l3);
+			float s2 = computeSideOperator(l4, l2);
+			if (s1 == 0 || s2 == 0) {
+				if (intersection.type == IntersectionType.PROPER)
+					intersection.type = IntersectionType.PROPER_END;
+				else if (intersection.type == IntersectionType.VERTEX)
+					intersection.type = IntersectionType.VERTEX_END;
+				else if (intersection.type == IntersectionType.EDGE)
+					intersection.type = IntersectionType.EDGE_END;
 			}
+			else if ((s1 < 0 && s2 > 0) || (s1 > 0 && s2 < 0)) {
+				return;
+			}
+			hit.add(new FacePointIntersectionPair(intersection, f));
 		}
-		else {
-			System.out.println("zero y");
-		}
-		
-		if (dir.z != 0.0f) {
-			//min z
-			t = (min.z - start.z) / dir.z;
-			if (!segment || (t <= maxLen && t >= 0.0f)) {
-				y = dir.y * t + start.y;
-				x = dir.x * t + start.x;
-				if (y >= min.y && y <= max.y && x >= min.x && x <= max.x) return true;
+		else { //coplanar
+			PointIntersection inter1 = intersectLineSegmentLineSegment(start, end, p0, p1);
+			PointIntersection inter2 = intersectLineSegmentLineSegment(start, end, p1, p2);
+			PointIntersection inter3 = intersectLineSegmentLineSegment(start, end, p2, p0);
+			ArrayList<Vector3f> temp = new ArrayList<Vector3f>();
+			if (inter1.type == IntersectionType.LINE)
+				temp.add(inter1.points.get(0));
+			if (inter2.type == IntersectionType.LINE)
+				temp.add(inter2.points.get(0));
+			if (inter3.type == IntersectionType.LINE)
+				temp.add(inter3.points.get(0));
+
+			if (temp.size() == 3) {
+				intersection.type = IntersectionType.COPLANAR_VERTEX_EDGE;
+				for(int i = 0; i < temp.size(); i++) {
+					for(int j = i+1; j < temp.size(); j++) {
+						if(temp.get(i).equals(temp.get(j))) {
+							temp.remove(j);
+							break;
+						}
+					}
+				}
+				intersection.points = temp;
 			}
-			
-			//max z
-			t = (max.z - start.z) / dir.z;
-			if (!segment || (t <= maxLen && t >= 0.0f)) {
-				y = dir.y * t + start.y;
-				x = dir.x * t + start.x;
-				if (y >= min.y && y <= max.y && x >= min.x && x <= max.x) return true;
+			else if (temp.size() == 2) {
+				intersection.type = IntersectionType.COPLANAR_TWO_EDGES;
+				intersection.points = temp;
+			}
+			else if (temp.size() == 1) {
+				intersection.type = IntersectionType.COPLANAR_EDGE;
+				intersection.points = temp;
+			}
+			else {
+				intersection.type = IntersectionType.COPLANAR_CONTAINED;
+				intersection.points = null;
 			}
+			hit.add(new FacePointIntersectionPair(intersection, f));
 		}
+	}
 
-		else {
-			System.out.println("zero z");
+	/** Returns true if the line (just segment if segment is true) between start and end intersects
+	 * the box between corners min and max, including a segment that starts or lies inside it.
+	 * The same slab test as SlabLine.hits, for a single box.
+	 */
+	public boolean intersectLineWithBB(Vector3f start, Vector3f end, Vector3f min, Vector3f max, boolean segment) {
+		float near = segment ? 0 : Float.NEGATIVE_INFINITY, far = segment ? 1 : Float.POSITIVE_INFINITY;
+		//each pair of sides cuts the line to the part between them (if the line runs along a side,
+		//it gives a NaN, which fails both compares and cuts nothing)
+		float inv = 1 / (end.x - start.x);
+		float t0 = (inv < 0 ? max.x : min.x) - start.x, t1 = (inv < 0 ? min.x : max.x) - start.x;
+		if (t0 * inv > near) near = t0 * inv;
+		if (t1 * inv < far) far = t1 * inv;
+		inv = 1 / (end.y - start.y);
+		t0 = (inv < 0 ? max.y : min.y) - start.y;
+		t1 = (inv < 0 ? min.y : max.y) - start.y;
+		if (t0 * inv > near) near = t0 * inv;
+		if (t1 * inv < far) far = t1 * inv;
+		inv = 1 / (end.z - start.z);
+		t0 = (inv < 0 ? max.z : min.z) - start.z;
+		t1 = (inv < 0 ? min.z : max.z) - start.z;
+		if (t0 * inv > near) near = t0 * inv;
+		if (t1 * inv < far) far = t1 * inv;
+		return near <= far;
+	}
+
+	/** The line through start and end, set up for slab tests against many boxes: t runs from 0 at
+	 * start to 1 at end, and the inverse of the direction and which way it runs along each axis are
+	 * worked out once in set(), so that hits() is only multiplies and compares.
+	 */
+	private static final class SlabLine {
+		float ox, oy, oz; //start
+		float ix, iy, iz; //1 / direction, infinite along an axis the line runs across
+		int sx, sy, sz; //3 where the line runs towards the min side along the axis, so it meets the max side first; 0 if not
+		float near, far; //where the line entered and left the last box hits() was true for
+
+		void set(Vector3f start, Vector3f end) {
+			ox = start.x;
+			oy = start.y;
+			oz = start.z;
+			ix = 1 / (end.x - start.x);
+			iy = 1 / (end.y - start.y);
+			iz = 1 / (end.z - start.z);
+			sx = ix < 0 ? 3 : 0;
+			sy = iy < 0 ? 3 : 0;
+			sz = iz < 0 ? 3 : 0;
+		}
+
+		/** True if the part of the line from tMin to tMax meets the box at box[at] (min x, y, z then
+		 * max x, y, z), setting near and far to where that part enters and leaves it. A part starting
+		 * inside the box enters it at tMin.
+		 */
+		boolean hits(float[] box, int at, float tMin, float tMax) {
+			//(a line along a side gives a NaN, which fails both compares and so cuts nothing)
+			float t0 = (box[at + sx] - ox) * ix, t1 = (box[at + 3 - sx] - ox) * ix;
+			if (t0 > tMin) tMin = t0;
+			if (t1 < tMax) tMax = t1;
+			t0 = (box[at + 1 + sy] - oy) * iy;
+			t1 = (box[at + 4 - sy] - oy) * iy;
+			if (t0 > tMin) tMin = t0;
+			if (t1 < tMax) tMax = t1;
+			t0 = (box[at + 2 + sz] - oz) * iz;
+			t1 = (box[at + 5 - sz] - oz) * iz;
+			if (t0 > tMin) tMin = t0;
+			if (t1 < tMax) tMax = t1;
+			near = tMin;
+			far = tMax;
+			return tMin <= tMax;
 		}
-		
-		return false;
 	}
-	
-	
+
 	/**********************************************************
 	 * End Intersection Calculation Stuff
 	 ********************************************************/
@@ -1339,81 +3255,314 @@ public class TetMesh extends Mesh implements OpenGLResourceObject {
 	
 	/** Set the vertices of this TetMesh to the given list of verts. */
 	public void setVerts(ArrayList<Vector3f> verts) {
-		this.verts = new ArrayList<Vert>(verts.size());
-		this.mVertexData = Buffers.newDirectFloatBuffer(verts.size() * 3);
+		float[] pos = new float[verts.size() * 3];
 		int i = 0;
-		float maxX = Float.MIN_VALUE, maxY = Float.MIN_VALUE, maxZ = Float.MIN_VALUE;
-		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
 		for (Vector3f v : verts) {
-			this.verts.add(new Vert(v));
-			mVertexData.put(i++, v.x);
-			mVertexData.put(i++, v.y);
-			mVertexData.put(i++, v.z);
-			maxX = Math.max(maxX, v.x);
-			maxY = Math.max(maxY, v.y);
-			maxZ = Math.max(maxZ, v.z);
-			minX = Math.min(minX, v.x);
-			minY = Math.min(minY, v.y);
-			minZ = Math.min(minZ, v.z);
+			pos[i++] = v.x;
+			pos[i++] = v.y;
+			pos[i++] = v.z;
+		}
+		setVerts(pos, verts.size());
+	}
+
+	/** Set the vertices of this TetMesh to the first count verts of pos ({x, y, z} per vertex). */
+	public void setVerts(float[] pos, int count) {
+		vertCount = 0;
+		ensureVertCapacity(count);
+		System.arraycopy(pos, 0, vertPos, 0, 3 * count);
+		finishVerts(count);
+	}
+
+	/** Finish setting the vertices once the first count of vertPos are filled in: the vertex buffer and bounds. */
+	private void finishVerts(int count) {
+		Arrays.fill(vertFaceCount, 0, count, 0);
+		vertCount = count;
+
+		this.mVertexData = Buffers.newDirectFloatBuffer(count * 3);
+		mVertexData.put(vertPos, 0, count * 3);
+		mVertexData.rewind();
+
+		float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+		for (int v = 0; v < count; v++) {
+			maxX = Math.max(maxX, vertPos[3 * v]);
+			maxY = Math.max(maxY, vertPos[3 * v + 1]);
+			maxZ = Math.max(maxZ, vertPos[3 * v + 2]);
+			minX = Math.min(minX, vertPos[3 * v]);
+			minY = Math.min(minY, vertPos[3 * v + 1]);
+			minZ = Math.min(minZ, vertPos[3 * v + 2]);
 		}
 		mUpperRight = new Point3f(maxX, maxY, maxZ);
 		mLowerLeft = new Point3f(minX, minY, minZ);
 	}
-	
-	/** Set the tetrahedrons of this TetMesh to the given list of tets 
+
+	/** Set the tetrahedrons of this TetMesh to the given list of tets
 	 * (in v0, v1, v2, v3 int order). */
 	public void setTets(ArrayList<Integer> tets) {
-		this.tets = new ArrayList<Tet>(tets.size() / 4);
-		for (int i = 0; i < tets.size() / 4; i++) {
-			Vert v0 = verts.get(tets.get(4 * i));
-			Vert v1 = verts.get(tets.get(4 * i + 1));
-			Vert v2 = verts.get(tets.get(4 * i + 2));
-			Vert v3 = verts.get(tets.get(4 * i + 3));
-			
-			Tet t = new Tet(v0, v1, v2, v3, 0);
-			this.tets.add(t);
+		int[] t = new int[tets.size()];
+		for (int i = 0; i < t.length; i++) {
+			t[i] = tets.get(i);
 		}
-		createSurface();
-		root = buildKDTree();
-		//printKDTree();
-		
-		//System.out.println("Starting intersect line segment");
-		//ArrayList<FacePointIntersectionPair> list = intersectLineSegment(new Vector3f(0,0,0), new Vector3f(0,1,0));
-		//System.out.println(list.size());
-		/*
-		for (FacePointIntersectionPair pair : list) {
-			System.out.println(pair.type + ", " + pair.points);
-		}
-		*/
-		
+		setTets(t, t.length / 4);
 	}
-	
-	/** Calculate the interfaces (between different materials) and
-	 * boundaries (between a tetrahedron at the edge of the mesh).
+
+	/** Set the tetrahedrons of this TetMesh to the first count tets of tets
+	 * (in v0, v1, v2, v3 int order). */
+	public void setTets(int[] tets, int count) {
+		setTets(tets, null, count);
+	}
+
+	/** As setTets(int[], int), with each tet's material index taken from mats (all 0 if mats is null).
+	 * The faces, surface and BVH are built in parallel on the pool. */
+	public void setTets(int[] tets, int[] mats, int count) {
+		resetTopology(count, 0);
+		System.arraycopy(tets, 0, tetVerts, 0, 4 * count);
+		if (mats != null)
+			System.arraycopy(mats, 0, tetMats, 0, count);
+		else
+			Arrays.fill(tetMats, 0, count, 0);
+		buildTopology(count);
+	}
+
+	/** Finish setting the tets once tetVerts and tetMats hold count tets: find their faces, surface and BVH. */
+	private void buildTopology(int count) {
+		tetCount = liveTetCount = count;
+		buildFaces();
+		finishTopology();
+	}
+
+	/** Find the faces of tets [0, tetCount), filling in tetFaces, faceVerts and faceTets, with each face
+	 * wound as in addTet for the first tet that has it.
+	 *
+	 * The four half-faces of every tet are split into partitions by face key, so that copies of a face
+	 * all land in the same partition, and each partition then finds its faces with a small map of its own.
+	 * Half-faces keep their tet order within a partition, and faces are numbered partition by partition,
+	 * so the result does not depend on how many threads ran.
 	 */
-	private void calculateInterfacesAndBoundaries() {
-		interfaces = new ArrayList<Face>(10);
-		boundaries = new ArrayList<Face>(10);
-		for (Face f: faces) {
-			if (f.t1 == null){
-				boundaries.add(f);
+	private void buildFaces() {
+		final int halves = 4 * tetCount;
+		int bits = 1;
+		while (bits < 16 && (halves >> bits) > PARTITION_SIZE) bits++;
+		final int partBits = bits, parts = 1 << bits;
+		final int chunks = (tetCount + BUILD_GRAIN - 1) / BUILD_GRAIN;
+		final long[] keys = new long[halves];
+		final int[] start = new int[chunks * parts]; //where chunk c's half-faces in partition p go, at c * parts + p
+
+		//face keys, and how many of each chunk's half-faces go to each partition
+		forEachChunk(tetCount, BUILD_GRAIN, new ChunkBody() {
+			@Override
+			public void run(int c, int lo, int hi) {
+				for (int h = 4 * lo; h < 4 * hi; h++) {
+					int v = 4 * (h >> 2), k = 3 * (h & 3);
+					keys[h] = faceKey(tetVerts[v + FACE_CORNERS[k]], tetVerts[v + FACE_CORNERS[k + 1]], tetVerts[v + FACE_CORNERS[k + 2]]);
+					start[c * parts + partition(keys[h], partBits)]++;
+				}
+			}
+		});
+		final int[] partStart = new int[parts + 1];
+		int sum = 0;
+		for (int p = 0; p < parts; p++) {
+			partStart[p] = sum;
+			for (int c = 0; c < chunks; c++) {
+				int n = start[c * parts + p];
+				start[c * parts + p] = sum;
+				sum += n;
 			}
-			else if (f.t0.mat != f.t1.mat) { //change to account for transparency..
-				interfaces.add(f);
+		}
+		partStart[parts] = sum;
+
+		//group the half-faces by partition
+		final int[] order = new int[halves];
+		forEachChunk(tetCount, BUILD_GRAIN, new ChunkBody() {
+			@Override
+			public void run(int c, int lo, int hi) {
+				for (int h = 4 * lo; h < 4 * hi; h++) {
+					order[start[c * parts + partition(keys[h], partBits)]++] = h;
+				}
+			}
+		});
+
+		//number each partition's faces from 0, noting the first two half-faces on each
+		//(first and second are indexed from partStart[p] for partition p)
+		final int[] first = new int[halves], second = new int[halves];
+		final int[] faceStart = new int[parts + 1];
+		forEachChunk(parts, 1, new ChunkBody() {
+			@Override
+			public void run(int p, int lo, int hi) {
+				int base = partStart[p], end = partStart[p + 1], n = 0;
+				LongIntHashMap local = new LongIntHashMap((end - base) / 2);
+				for (int j = base; j < end; j++) {
+					int h = order[j];
+					int i = local.get(keys[h]);
+					if (i == -1) {
+						i = n++;
+						local.put(keys[h], i);
+						first[base + i] = h;
+						second[base + i] = -1;
+					}
+					else if (second[base + i] == -1) {
+						second[base + i] = h;
+					}
+					tetFaces[h] = i;
+				}
+				faceStart[p + 1] = n;
 			}
+		});
+		for (int p = 0; p < parts; p++) {
+			faceStart[p + 1] += faceStart[p];
 		}
+		faceCount = liveFaceCount = faceStart[parts];
+		ensureFaceCapacity(faceCount);
+
+		//and give them their global numbers
+		forEachChunk(parts, 1, new ChunkBody() {
+			@Override
+			public void run(int p, int lo, int hi) {
+				int base = partStart[p], end = partStart[p + 1];
+				for (int f = faceStart[p]; f < faceStart[p + 1]; f++) {
+					int h = first[base + f - faceStart[p]], h2 = second[base + f - faceStart[p]];
+					int v = 4 * (h >> 2), k = 3 * (h & 3);
+					faceVerts[3 * f] = tetVerts[v + FACE_CORNERS[k]];
+					faceVerts[3 * f + 1] = tetVerts[v + FACE_CORNERS[k + 1]];
+					faceVerts[3 * f + 2] = tetVerts[v + FACE_CORNERS[k + 2]];
+					faceTets[2 * f] = h >> 2;
+					faceTets[2 * f + 1] = (h2 == -1 ? -1 : h2 >> 2);
+				}
+				for (int j = base; j < end; j++) {
+					tetFaces[order[j]] += faceStart[p];
+				}
+			}
+		});
 	}
-	
-	private ArrayList<Face> recalculateBoundaries() {
-		ArrayList<Face> ret = new ArrayList<Face>();
-		for (Face f: faces) {
-			if (f.t1 == null) {
-				ret.add(f);
+
+	/** Which of 1 << bits partitions buildFaces puts face key into. */
+	private static int partition(long key, int bits) {
+		return (int)((key * 0x9E3779B97F4A7C15L) >>> (64 - bits));
+	}
+
+	/** Finish building the mesh once tetFaces, faceVerts and faceTets are filled in: face bounds and
+	 * counts, neighbors, the surface and the BVH. The face registry is built in the background. */
+	private void finishTopology() {
+		forEachChunk(faceCount, BUILD_GRAIN, new ChunkBody() {
+			@Override
+			public void run(int c, int lo, int hi) {
+				for (int f = lo; f < hi; f++) {
+					faceDirty[f] = false;
+					computeFaceBounds(f);
+				}
 			}
+		});
+		for (int i = 0; i < 3 * faceCount; i++) {
+			vertFaceCount[faceVerts[i]]++;
 		}
-		return ret;
+		pool.invoke(new LinkNeighbors(0, tetCount));
+		countAnchorTets();
+		createSurface();
+		buildBVH();
+
+		//hashing every face is the slow part of a build, and only edits need the registry,
+		//so build it in the background; registry() waits for it.
+		final int[] verts = faceVerts;
+		final int n = faceCount;
+		faceRegistry = null;
+		pendingRegistry = pool.submit(new Callable<LongIntHashMap>() {
+			@Override
+			public LongIntHashMap call() {
+				LongIntHashMap reg = new LongIntHashMap(n);
+				for (int f = 0; f < n; f++) {
+					reg.put(faceKey(verts[3 * f], verts[3 * f + 1], verts[3 * f + 2]), f);
+				}
+				return reg;
+			}
+		});
 	}
-	
+
+	/** The face registry, first waiting for its background build to finish if need be. */
+	private LongIntHashMap registry() {
+		if (pendingRegistry != null) {
+			faceRegistry = pendingRegistry.join();
+			pendingRegistry = null;
+		}
+		return faceRegistry;
+	}
+
+	/** Drop all tets, faces and edit history, making room for the given numbers of tets and faces. */
+	private void resetTopology(int tets, int faces) {
+		registry(); //don't let a background build race the arrays being refilled
+		tetCount = liveTetCount = 0;
+		faceCount = liveFaceCount = 0;
+		removedTets.clear();
+		freeFaces.clear();
+		freedFaces.clear();
+		islandSeeds.clear();
+		islands.clear();
+		clearHistory();
+		Arrays.fill(vertFaceCount, 0, vertCount, 0);
+		ensureTetCapacity(tets);
+		ensureFaceCapacity(faces);
+		faceRegistry = new LongIntHashMap(faces);
+	}
+
+	/** Find the sides to draw at boundaries (where a face has only one tet) and at interfaces
+	 * between materials, and lay them out in their chunks' and materials' batches in face order.
+	 */
+	private void calculateSides() {
+		resetChunks();
+
+		//find each side's batch key (chunk * MAX_MATS + material, or -1 if it isn't shown) and the largest face...
+		final int[] key = new int[2 * faceCount];
+		final int grains = (faceCount + BUILD_GRAIN - 1) / BUILD_GRAIN;
+		final float[] extent = new float[grains], extentSum = new float[grains];
+		final int[] drawn = new int[grains];
+		forEachChunk(faceCount, BUILD_GRAIN, new ChunkBody() {
+			@Override
+			public void run(int c, int lo, int hi) {
+				for (int f = lo; f < hi; f++) {
+					key[2 * f] = key[2 * f + 1] = -1;
+					if (faceTets[2 * f] == -1) continue;
+					int chunk = chunkOf(f);
+					for (int side = 2 * f; side < 2 * f + 2; side++) {
+						sideSlot[side] = -1;
+						if (isSideShown(side)) key[side] = chunk * MAX_MATS + tetMats[faceTets[side]];
+					}
+					if (key[2 * f] == -1 && key[2 * f + 1] == -1) continue;
+					float e = 0;
+					for (int k = 0; k < 3; k++) {
+						e = Math.max(e, faceBounds[6 * f + 3 + k] - faceBounds[6 * f + k]);
+					}
+					extent[c] = Math.max(extent[c], e);
+					extentSum[c] += e;
+					drawn[c]++;
+				}
+			}
+		});
+		faceExtent = 0;
+		float sum = 0;
+		int count = 0;
+		for (int c = 0; c < grains; c++) {
+			faceExtent = Math.max(faceExtent, extent[c]);
+			sum += extentSum[c];
+			count += drawn[c];
+		}
+		lodCell = (count > 0 ? sum / count : 1);
+
+		//...then hand out the slots (batches only come into being here, so this part is serial).
+		for (int side = 0; side < 2 * faceCount; side++) {
+			if (key[side] == -1) {
+				sideSlot[side] = -1;
+				continue;
+			}
+			Batch b = batch(key[side] / MAX_MATS, key[side] % MAX_MATS);
+			int idx = b.sides.size();
+			ensurePolygonCapacity(b, idx + 1);
+			b.sides.add(side);
+			writeSide(b, idx, side);
+			sideSlot[side] = idx;
+			sideBatch[side] = b.index;
+			sideLit[side] = isSideLit(side);
+		}
+	}
+
 	/** Set this TetMesh's polygons to be present at any interface between
 	 * tetrahedrons with different materials (where at least one is non-opaque), or
 	 * at boundaries where a Face has only one adjacent Tet.
@@ -1421,139 +3570,201 @@ public class TetMesh extends Mesh implements OpenGLResourceObject {
 	private void createSurface() {
 		//Go through and find all faces which are interfaces between different materials
 		//or are boundaries at the edge of the tetmesh.
-		calculateInterfacesAndBoundaries();
-		
-		
-		vtx = new float[verts.size() * 3];
-		
-		for (int i = 0; i < verts.size(); i++) {
-			vtx[3 * i] = verts.get(i).pos.x;
-			vtx[3 * i + 1] = verts.get(i).pos.y;
-			vtx[3 * i + 2] = verts.get(i).pos.z;
+		calculateSides();
+		for (int i = 0; i < dirtyFaces.size(); i++) {
+			faceDirty[dirtyFaces.get(i)] = false;
 		}
-		
-		//Copy these into an actual array now we know the number of faces required.
-		arr = new int[boundaries.size() * 3];
-		
-		//simultaneously compute normals.
-		norms = new Vector3f[verts.size()];
-		normArr = new float[verts.size() * 3];
-		
-		texArr = new float[verts.size() * 2];
-		
-		for (int i = 0; i < norms.length; i++) {
-			norms[i] = new Vector3f(0.0f, 0.0f, 0.0f); //zero normal
+		dirtyFaces.clear();
+
+		Arrays.fill(normSum, 0, vertCount * 3, 0.0f);
+		Arrays.fill(vertShownCount, 0, vertCount, 0);
+		if (batches.isEmpty()) batch(0, 0); //so that an empty mesh still draws (nothing) with a material
+		for (final Batch b : batches) {
+			//compute the normals of the batch's triangles...
+			final int slots = b.sides.size();
+			final float[] triNormals = new float[slots * 3];
+			forEachChunk(slots, BUILD_GRAIN, new ChunkBody() {
+				@Override
+				public void run(int c, int lo, int hi) {
+					float[] n = new float[3];
+					for (int j = lo; j < hi; j++) {
+						computeTriNormal(b.tris[3 * j], b.tris[3 * j + 1], b.tris[3 * j + 2], n);
+						System.arraycopy(n, 0, triNormals, 3 * j, 3);
+					}
+				}
+			});
+
+			//...and sum the lit ones at the verts (verts are shared across chunks, so this part is serial).
+			for (int i = 0; i < 3 * slots; i++) {
+				int v = b.tris[i], j = i - i % 3;
+				if (!sideLit[b.sides.get(j / 3)]) continue;
+				vertShownCount[v]++;
+				normSum[3 * v] += triNormals[j];
+				normSum[3 * v + 1] += triNormals[j + 1];
+				normSum[3 * v + 2] += triNormals[j + 2];
+			}
 		}
-		
-		//And texture coords
-		for (int i = 0; i < verts.size(); i++) {
-			Vector3f pos = verts.get(i).pos;
-			texArr[2 * i] = (float)(Math.atan2(pos.z, pos.x) / (2*Math.PI) * 40) + pos.length() / 5.0f;
-			texArr[2 * i + 1] = (float)(Math.atan2(pos.y, Math.sqrt(pos.x * pos.x + pos.z * pos.z)) / (2*Math.PI) * 40) + pos.length() / 5.0f;
+
+		//Go through and normalize normals (sums of adjacent edges), and compute texture coords.
+		forEachChunk(vertCount, BUILD_GRAIN, new ChunkBody() {
+			@Override
+			public void run(int c, int lo, int hi) {
+				for (int v = lo; v < hi; v++) {
+					normalizeVertNormal(v);
+					computeTexCoord(v);
+				}
+			}
+		});
+
+		//And store in the mesh's normal data buffer, and each chunk's buffers.
+		wrapVertexBuffers();
+		ArrayList<Chunk> live = new ArrayList<Chunk>();
+		for (Chunk ch : chunks) {
+			if (ch != null) live.add(ch);
 		}
-		
-		int v0, v1, v2;
-		Vector3f d0 = new Vector3f(), d1 = new Vector3f();
-		for (int j = 0; j < boundaries.size(); j++) {
-			Face f = boundaries.get(j);
-			
-			v0 = verts.indexOf(f.v0);
-			v1 = verts.indexOf(f.v1);
-			v2 = verts.indexOf(f.v2);
-			arr[3 * j] = v0;
-			arr[3 * j + 1] = v1;
-			arr[3 * j + 2] = v2;
-			
-			//find normal for that face
-			d0.sub(f.v1.pos, f.v0.pos);
-			d1.sub(f.v2.pos, f.v0.pos);
-			d0.cross(d1, d0);
-			d0.normalize();
-			
-			norms[v0].add(d0);
-			norms[v1].add(d0);
-			norms[v2].add(d0);
-			//may need to play with winding order..
+		rebuildChunks(live);
+	}
+
+	/** Point the mesh's vertex, normal and texcoord buffers at the live part of the vertex arrays. */
+	private void wrapVertexBuffers() {
+		mVertexData = FloatBuffer.wrap(vertPos, 0, vertCount * 3).slice();
+		mNormalData = FloatBuffer.wrap(normArr, 0, vertCount * 3).slice();
+		mTexCoordData = FloatBuffer.wrap(texArr, 0, vertCount * 2).slice();
+	}
+
+	/** Compute vertex v's texture coordinate into texArr. */
+	private void computeTexCoord(int v) {
+		float x = vertPos[3 * v], y = vertPos[3 * v + 1], z = vertPos[3 * v + 2];
+		float len = (float)Math.sqrt(x * x + y * y + z * z);
+		texArr[2 * v] = (float)(Math.atan2(z, x) / (2*Math.PI) * 40) + len / 5.0f;
+		texArr[2 * v + 1] = (float)(Math.atan2(y, Math.sqrt(x * x + z * z)) / (2*Math.PI) * 40) + len / 5.0f;
+	}
+
+	/** Unit normal of face f, (v2 - v0) x (v1 - v0), written into n. */
+	private void computeFaceNormal(int f, float[] n) {
+		computeTriNormal(faceVerts[3 * f], faceVerts[3 * f + 1], faceVerts[3 * f + 2], n);
+	}
+
+	/** Unit normal of the triangle over verts a, b and c, (c - a) x (b - a), written into n. */
+	private void computeTriNormal(int a, int b, int c, float[] n) {
+		int v0 = 3 * a, v1 = 3 * b, v2 = 3 * c;
+		float d0x = vertPos[v1] - vertPos[v0], d0y = vertPos[v1 + 1] - vertPos[v0 + 1], d0z = vertPos[v1 + 2] - vertPos[v0 + 2];
+		float d1x = vertPos[v2] - vertPos[v0], d1y = vertPos[v2 + 1] - vertPos[v0 + 1], d1z = vertPos[v2 + 2] - vertPos[v0 + 2];
+		n[0] = d1y * d0z - d1z * d0y;
+		n[1] = d1z * d0x - d1x * d0z;
+		n[2] = d1x * d0y - d1y * d0x;
+		float len = (float)Math.sqrt(n[0] * n[0] + n[1] * n[1] + n[2] * n[2]);
+		if (len > 0) {
+			n[0] /= len;
+			n[1] /= len;
+			n[2] /= len;
 		}
-		
-		//Go through and normalize normals (sums of adjacent edges).
-		for (int i = 0; i < norms.length; i++) {
-			//norms[i].set(verts.get(i).pos);
-			//norms[i].normalize();
-			
-			
-			if (norms[i].lengthSquared() == 0) {
-				norms[i].set(0.0f, 0.0f, 1.0f); // vert not in any interface edges
+	}
+
+	/** Add (sign 1) or take away (sign -1) face f's unit normal from the normal sums of its verts.
+	 * n is scratch space for the normal. */
+	private void addFaceNormal(int f, int sign, float[] n) {
+		addTriNormal(faceVerts[3 * f], faceVerts[3 * f + 1], faceVerts[3 * f + 2], sign, n);
+	}
+
+	/** As addFaceNormal, for the triangle over verts a, b and c in that winding. */
+	private void addTriNormal(int a, int b, int c, int sign, float[] n) {
+		computeTriNormal(a, b, c, n);
+		for (int k = 0; k < 3; k++) {
+			int v = (k == 0 ? a : k == 1 ? b : c);
+			vertShownCount[v] += sign;
+			if (vertShownCount[v] == 0) {
+				//drop any rounding left over from the adds and subtracts
+				normSum[3 * v] = normSum[3 * v + 1] = normSum[3 * v + 2] = 0;
 			}
 			else {
-				norms[i].normalize();
+				normSum[3 * v] += sign * n[0];
+				normSum[3 * v + 1] += sign * n[1];
+				normSum[3 * v + 2] += sign * n[2];
 			}
-			
-			normArr[i * 3 + 0] = norms[i].x;
-			normArr[i * 3 + 1] = norms[i].y;
-			normArr[i * 3 + 2] = norms[i].z;
-			
 		}
-		
-		
-		//And store in the mesh's polygon and normal data buffer.
-		mVertexData = FloatBuffer.wrap(vtx);
-		mPolygonData = IntBuffer.wrap(arr);
-		mNormalData = FloatBuffer.wrap(normArr);
-		mTexCoordData = FloatBuffer.wrap(texArr);
-		
-		System.out.println("Faces: " + faces.size()); //TODO remove
-		System.out.println("Shown faces: " + boundaries.size()); //TODO remove
-		
 	}
-	
-	/** Discovers if this TetMesh contains a face with the same verts as f. 
-	 * 
-	 * @param f - the Face to check.
-	 * @return the Face with the same verts, or null if one does not exist.
-	 */
-	public Face hasFace(Face f) {	
-		//int i = 0;
-		ArrayList<Face> check; //the smallest face list of the three verts
-		check = (f.v0.faces.size() < f.v1.faces.size() ? 
-				(f.v0.faces.size() < f.v2.faces.size() ? f.v0.faces : f.v2.faces) : 
-				(f.v1.faces.size() < f.v2.faces.size() ? f.v1.faces : f.v2.faces)
-		);
-		
-		for (Face a : check) {
-			//i++; System.out.println(i);
-			if (a.equals(f)) return a;
-		}
-		return null;
+
+	/** As addTriNormal, then renormalize the three touched verts. */
+	private void updateTriNormal(int a, int b, int c, int sign, float[] n) {
+		addTriNormal(a, b, c, sign, n);
+		normalizeVertNormal(a);
+		normalizeVertNormal(b);
+		normalizeVertNormal(c);
 	}
-	
-	/** Add Face f if it is not already listed. 
-	 * 
-	 * @param f - the Face to check.
-	 * @return f if it was not already in faces, or the old Face if it was.
-	 */
-	public Face addFace (Face f) {
-		Face a = hasFace(f);
-		if (a == null) {
-			faces.add(f);
-			f.v0.addFace(f);
-			f.v1.addFace(f);
-			f.v2.addFace(f);
-			return f;
+
+	/** Set vertex v's entry of normArr to its normalized normal sum. */
+	private void normalizeVertNormal(int v) {
+		float nx = normSum[3 * v], ny = normSum[3 * v + 1], nz = normSum[3 * v + 2];
+		float len2 = nx * nx + ny * ny + nz * nz;
+		if (len2 == 0) {
+			normArr[3 * v] = 0.0f;
+			normArr[3 * v + 1] = 0.0f;
+			normArr[3 * v + 2] = 1.0f; // vert not in any interface edges
 		}
 		else {
-			return a;
+			float len = (float)Math.sqrt(len2);
+			normArr[3 * v] = nx / len;
+			normArr[3 * v + 1] = ny / len;
+			normArr[3 * v + 2] = nz / len;
 		}
-		
 	}
-	
-	/** Discovers if this TetMesh contains a tetrahedron with the same verts as t.
-	 * 
-	 * @param t - the Tet to check.
+
+	/** Discovers if this TetMesh contains a face with the verts a, b and c.
+	 *
+	 * @return the index of the Face with the same verts (in any order), or -1 if one does not exist.
+	 */
+	public int hasFace(int a, int b, int c) {
+		return registry().get(faceKey(a, b, c));
+	}
+
+	/** Add the face over verts a, b and c (in that winding order) if it is not already listed.
+	 *
+	 * @return the index of the new Face, or of the old Face if it was already there.
+	 */
+	public int addFace(int a, int b, int c) {
+		long key = faceKey(a, b, c);
+		int f = registry().get(key);
+		if (f == -1) {
+			if (freeFaces.size() > 0) {
+				f = freeFaces.pop();
+			}
+			else {
+				ensureFaceCapacity(faceCount + 1);
+				f = faceCount++;
+			}
+			liveFaceCount++;
+			faceVerts[3 * f] = a;
+			faceVerts[3 * f + 1] = b;
+			faceVerts[3 * f + 2] = c;
+			faceTets[2 * f] = -1;
+			faceTets[2 * f + 1] = -1;
+			sideSlot[2 * f] = sideSlot[2 * f + 1] = -1;
+			computeFaceBounds(f);
+			faceRegistry.put(key, f);
+			vertFaceCount[a]++;
+			vertFaceCount[b]++;
+			vertFaceCount[c]++;
+		}
+		return f;
+	}
+
+	/** Discovers if this TetMesh contains a tetrahedron with the verts a, b, c and d.
+	 *
 	 * @return the index of a Tet with the same verts, or -1 if one does not exist.
 	 */
-	public int hasTet(Tet t) {
-		return tets.indexOf(t);
+	public int hasTet(int a, int b, int c, int d) {
+		//such a tet has face abc, which knows the (at most two) tets on either side of it
+		int f = hasFace(a, b, c);
+		if (f == -1) return -1;
+		for (int k = 0; k < 2; k++) {
+			int t = faceTets[2 * f + k];
+			if (t == -1) continue;
+			for (int i = 0; i < 4; i++) {
+				if (tetVerts[4 * t + i] == d) return t;
+			}
+		}
+		return -1;
 	}
 
 	@Override
@@ -1564,228 +3775,304 @@ public class TetMesh extends Mesh implements OpenGLResourceObject {
 	@Override
 	public FloatBuffer calculateTangentVectors() {
 		// TODO Auto-generated method stub
-		
+
 		return null;
 	}
 
+	/** A TetMesh is edited in place, so rather than sharing its data like other meshes' clones,
+	 * this builds an independent copy of the live tets (sharing only the materials). Tets are
+	 * renumbered, and the copy starts with an empty undo history.
+	 */
 	@Override
 	public Mesh clone() {
 		TetMesh m = new TetMesh();
-		
-		return null;
+		m.mats = mats;
+		m.matTransparent = matTransparent.clone();
+		m.setVerts(vertPos, vertCount);
+		int[] live = new int[4 * liveTetCount], liveMats = new int[liveTetCount];
+		int n = 0;
+		for (int t = 0; t < tetCount; t++) {
+			if (!isTetAlive(t)) continue;
+			System.arraycopy(tetVerts, 4 * t, live, 4 * n, 4);
+			liveMats[n++] = tetMats[t];
+		}
+		m.setTets(live, liveMats, n);
+		m.setAnchor(anchorVert);
+		return m;
 	}
-	
-	/** A vertex. */
-	private class Vert {
-		public Vector3f pos;
-		public ArrayList<Face> faces;
-		
-		/** Constructor.
-		 * 
-		 * @param pos - the position of this Vert.
-		 */
-		public Vert(Vector3f pos) {
-			this.pos = pos;
-			faces = new ArrayList<Face>(1);
+
+	/**********************************************************
+	 * Snapshots
+	 ********************************************************/
+
+	/* Snapshot file layout, all little-endian:
+	 *   header: int[8] {SNAPSHOT_MAGIC, SNAPSHOT_VERSION, flags, verts, tets, faces, anchor vertex, removed}
+	 *   float[3 * verts] vertex positions
+	 *   int[4 * tets] tet verts, int[tets] tet materials
+	 * and if flags has SNAPSHOT_TOPOLOGY (faces is 0 otherwise):
+	 *   int[3 * faces] face verts, int[2 * faces] face tets, int[4 * tets] tet faces
+	 * then the deleted tets which fill brushes can put back:
+	 *   int[4 * removed] tet verts, int[removed] tet materials
+	 * Only live tets and faces are written, renumbered in order. Snapshots from before deleted tets
+	 * were saved have 0 in place of removed. */
+	private static final int SNAPSHOT_MAGIC = 0x4D544554; //"TETM"
+	private static final int SNAPSHOT_VERSION = 1;
+	private static final int SNAPSHOT_TOPOLOGY = 1;
+	private static final int SNAPSHOT_HEADER = 8;
+
+	/** Write this mesh to a snapshot file at path, including the face topology so that
+	 * loading does not have to rebuild it. Deleted tets are saved too, so fill brushes can still put
+	 * them back after a load; the undo history is not saved.
+	 * The snapshot is written to path + ".tmp" and then renamed over path, so an interrupted save
+	 * leaves the old file as it was.
+	 */
+	public void save(String path) throws IOException {
+		//renumber the live tets and faces
+		int[] tetMap = new int[tetCount], faceMap = new int[faceCount];
+		int tets = 0, faces = 0;
+		for (int t = 0; t < tetCount; t++) {
+			tetMap[t] = (isTetAlive(t) ? tets++ : -1);
 		}
-		
-		/** Check Vert equality based on position.
-		 * 
-		 * @param v - the Vert to compare this Vert to.
-		 * @return true if this Vert has the same position as v.
-		 */
-		public boolean equals(Vert v) {
-			return pos.equals(v.pos);
+		for (int f = 0; f < faceCount; f++) {
+			faceMap[f] = (isFaceAlive(f) ? faces++ : -1);
 		}
-		
-		public String toString() {
-			return pos.toString();
+		int removed = removedTets.size();
+
+		long size = 4L * (SNAPSHOT_HEADER + 3L * vertCount + 5L * tets + 5L * faces + 4L * tets + 5L * removed);
+		if (size > Integer.MAX_VALUE) throw new IOException("mesh is too large to save to " + path);
+		File temp = new File(path + ".tmp");
+		FileOutputStream file = new FileOutputStream(temp);
+		boolean written = false;
+		try {
+			ByteBuffer buf = ByteBuffer.allocate((int)size).order(ByteOrder.LITTLE_ENDIAN);
+			buf.asIntBuffer().put(new int[] {SNAPSHOT_MAGIC, SNAPSHOT_VERSION, SNAPSHOT_TOPOLOGY,
+					vertCount, tets, faces, anchorVert, removed});
+			buf.position(4 * SNAPSHOT_HEADER);
+			buf.asFloatBuffer().put(vertPos, 0, 3 * vertCount);
+			buf.position(buf.position() + 4 * 3 * vertCount);
+
+			IntBuffer ints = buf.asIntBuffer();
+			for (int t = 0; t < tetCount; t++) {
+				if (tetMap[t] != -1) ints.put(tetVerts, 4 * t, 4);
+			}
+			for (int t = 0; t < tetCount; t++) {
+				if (tetMap[t] != -1) ints.put(tetMats[t]);
+			}
+			for (int f = 0; f < faceCount; f++) {
+				if (faceMap[f] != -1) ints.put(faceVerts, 3 * f, 3);
+			}
+			for (int f = 0; f < faceCount; f++) {
+				if (faceMap[f] == -1) continue;
+				ints.put(tetMap[faceTets[2 * f]]);
+				ints.put(faceTets[2 * f + 1] == -1 ? -1 : tetMap[faceTets[2 * f + 1]]);
+			}
+			for (int t = 0; t < tetCount; t++) {
+				if (tetMap[t] == -1) continue;
+				for (int i = 0; i < 4; i++) {
+					ints.put(faceMap[tetFaces[4 * t + i]]);
+				}
+			}
+			for (int i = 0; i < removed; i++) {
+				ints.put(tetVerts, 4 * removedTets.get(i), 4);
+			}
+			for (int i = 0; i < removed; i++) {
+				ints.put(tetMats[removedTets.get(i)]);
+			}
+
+			buf.clear();
+			FileChannel channel = file.getChannel();
+			while (buf.hasRemaining()) channel.write(buf);
+			channel.force(true);
+			written = true;
 		}
-		
-		public void addFace(Face f) {
-			faces.add(f);
+		finally {
+			file.close();
+			if (!written) temp.delete();
 		}
+		Files.move(temp.toPath(), new File(path).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
 	}
-	
-	private class TreeNode {
-		public Point3f upperRight, lowerLeft;
-		public TreeNode left;
-		public TreeNode right;
-		public ArrayList<Face> faces;
 
+	/** Read a mesh from a snapshot file written by save(). The file is memory mapped read-only and
+	 * the mesh's arrays are filled straight from the mapping; if it has the face topology, faces are
+	 * not rebuilt from the tets. save() never writes into an existing snapshot, it renames a new file
+	 * over it, so a mapping can't see a snapshot change under it (though on Windows the rename can
+	 * fail until the mapping is garbage collected).
+	 * The mesh has no materials set. Indices are checked, so a corrupt or truncated file throws an
+	 * IOException rather than building a broken mesh.
+	 */
+	public static TetMesh load(String path) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+			if (size < 4 * SNAPSHOT_HEADER) throw new IOException(path + " is not a TetMesh snapshot");
+			if (size > Integer.MAX_VALUE) throw new IOException(path + " is too large to load");
+			ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+			int[] header = new int[SNAPSHOT_HEADER];
+			buf.asIntBuffer().get(header);
+			if (header[0] != SNAPSHOT_MAGIC) throw new IOException(path + " is not a TetMesh snapshot");
+			if (header[1] != SNAPSHOT_VERSION) throw new IOException(path + " has unsupported snapshot version " + header[1]);
+			boolean topology = (header[2] & SNAPSHOT_TOPOLOGY) != 0;
+			int verts = header[3], tets = header[4], faces = (topology ? header[5] : 0), removed = header[7];
+			if (verts < 0 || tets < 0 || faces < 0 || removed < 0 ||
+					size < 4L * (SNAPSHOT_HEADER + 3L * verts + 5L * tets + 5L * faces + (topology ? 4L * tets : 0) + 5L * removed))
+				throw new IOException(path + " is truncated");
+			if (verts > MAX_VERTS) throw new IOException(path + " has " + verts + " verts, more than a TetMesh supports");
+			if (header[6] < -1 || header[6] >= verts) throw new IOException(path + " has anchor vertex " + header[6] + " out of range");
+
+			TetMesh m = new TetMesh();
+			m.ensureVertCapacity(verts);
+			buf.position(4 * SNAPSHOT_HEADER);
+			buf.asFloatBuffer().get(m.vertPos, 0, 3 * verts);
+			buf.position(buf.position() + 4 * 3 * verts);
+			m.finishVerts(verts);
+
+			IntBuffer ints = buf.asIntBuffer();
+			m.resetTopology(tets, 0);
+			ints.get(m.tetVerts, 0, 4 * tets);
+			ints.get(m.tetMats, 0, tets);
+			checkIndices(path, "tet vertex", m.tetVerts, 0, 4 * tets, 0, verts);
+			checkIndices(path, "material", m.tetMats, 0, tets, 0, MAX_MATS);
+			if (topology) {
+				m.readTopology(path, ints, tets, faces);
+			}
+			else {
+				m.buildTopology(tets);
+			}
+			m.readRemovedTets(path, ints, removed);
+			m.setAnchor(header[6]);
+			return m;
+		}
+		finally {
+			file.close();
+		}
 	}
-	
-	private class FaceComparator implements Comparator<Face> {
-		private int axis;
-		
-		public FaceComparator(int a) {
-			if (a < 0 || a > 2)
-				axis = 0;
-			else
-				axis = a;
+
+	/** As buildTopology, but with the faces read from the snapshot at path (ints holds the face verts,
+	 * face tets and tet faces), so they do not have to be found again. Throws an IOException if the
+	 * faces and tets do not refer to each other consistently.
+	 */
+	private void readTopology(String path, IntBuffer ints, int count, int faces) throws IOException {
+		ensureFaceCapacity(faces);
+		ints.get(faceVerts, 0, 3 * faces);
+		ints.get(faceTets, 0, 2 * faces);
+		ints.get(tetFaces, 0, 4 * count);
+		checkIndices(path, "face vertex", faceVerts, 0, 3 * faces, 0, vertCount);
+		checkIndices(path, "face tet", faceTets, 0, 2 * faces, -1, count);
+		checkIndices(path, "tet face", tetFaces, 0, 4 * count, 0, faces);
+		for (int f = 0; f < faces; f++) {
+			if (faceTets[2 * f] == -1) throw new IOException(path + " has face " + f + " with no tet");
 		}
-		@Override
-		public int compare(Face o1, Face o2) {
-			if (axis == 0) {
-				float x1 =o1.center.x;
-				float x2 = o2.center.x;
-				if (x1 < x2)
-					return -1;
-				else if (x1 > x2)
-					return 1;
-				else
-					return 0;
-			}
-			else if (axis == 1) {
-				float y1 = o1.center.y;
-				float y2 = o2.center.y;
-				if (y1 < y2)
-					return -1;
-				else if (y1 > y2)
-					return 1;
-				else
-					return 0;
-			}
-			else if (axis == 2) {
-				float z1 = o1.center.z;
-				float z2 = o2.center.z;
-				if (z1 < z2)
-					return -1;
-				else if (z1 > z2)
-					return 1;
-				else
-					return 0;
+		for (int t = 0; t < count; t++) {
+			for (int i = 0; i < 4; i++) {
+				int f = tetFaces[4 * t + i];
+				if (faceTets[2 * f] != t && faceTets[2 * f + 1] != t)
+					throw new IOException(path + " has tet " + t + " on face " + f + ", which does not list it");
 			}
-			return 0;
 		}
-		
+		tetCount = liveTetCount = count;
+		faceCount = liveFaceCount = faces;
+		finishTopology();
 	}
-	
-	/** A tetrahedral face. */
-	private class Face {
-		public Vert v0, v1, v2;
-		public Tet t0, t1;
-		//public Vector3f center;
-		public Point3f upperRight, lowerLeft, center;		
-		/** Constructor.
-		 * 
-		 * @param v0 - the first vertex
-		 * @param v1 - the second vertex
-		 * @param v2 - the third vertex
-		 */
-		public Face(Vert v0, Vert v1, Vert v2) {
-			this.v0 = v0;
-			this.v1 = v1;
-			this.v2 = v2;
-			float maxX = Float.MIN_VALUE, maxY = Float.MIN_VALUE, maxZ = Float.MIN_VALUE;
-			float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
-			maxX = Math.max(maxX, v0.pos.x);
-			maxY = Math.max(maxY, v0.pos.y);
-			maxZ = Math.max(maxZ, v0.pos.z);
-			minX = Math.min(minX, v0.pos.x);
-			minY = Math.min(minY, v0.pos.y);
-			minZ = Math.min(minZ, v0.pos.z);
-			
-			maxX = Math.max(maxX, v1.pos.x);
-			maxY = Math.max(maxY, v1.pos.y);
-			maxZ = Math.max(maxZ, v1.pos.z);
-			minX = Math.min(minX, v1.pos.x);
-			minY = Math.min(minY, v1.pos.y);
-			minZ = Math.min(minZ, v1.pos.z);
-			
-			maxX = Math.max(maxX, v2.pos.x);
-			maxY = Math.max(maxY, v2.pos.y);
-			maxZ = Math.max(maxZ, v2.pos.z);
-			minX = Math.min(minX, v2.pos.x);
-			minY = Math.min(minY, v2.pos.y);
-			minZ = Math.min(minZ, v2.pos.z);
-			
-			this.upperRight = new Point3f(maxX, maxY, maxZ);
-			this.lowerLeft = new Point3f(minX, minY, minZ);
-			this.center = new Point3f();
-			this.center.add(this.upperRight, this.lowerLeft);
-			this.center.scale(0.5f);
-		}
-		
-		/** Set one of the two tetrahedra of this Face to t. Does nothing if both tets are already filled.
-		 * 
-		 * @param t - the Tet to set.
-		 */
-		public void setTet(Tet t) {
-			if (t0 == null) {t0 = t;}
-			else if (t1 == null) {t1 = t;}
-			else {} //tried to set a tet on a face that already had its tets filled.
+
+	/** Read count deleted tets (their verts, then their materials) from the snapshot at path and
+	 * append them as deleted tets, which fill brushes can put back. */
+	private void readRemovedTets(String path, IntBuffer ints, int count) throws IOException {
+		int first = tetCount;
+		ensureTetCapacity(first + count);
+		ints.get(tetVerts, 4 * first, 4 * count);
+		ints.get(tetMats, first, count);
+		checkIndices(path, "deleted tet vertex", tetVerts, 4 * first, 4 * (first + count), 0, vertCount);
+		checkIndices(path, "deleted tet material", tetMats, first, first + count, 0, MAX_MATS);
+		for (int t = first; t < first + count; t++) {
+			tetFaces[4 * t] = -1;
+			Arrays.fill(tetNeighbors, 4 * t, 4 * t + 4, -1);
+			removedTets.add(t);
 		}
-		
-		/** Check face equality based on vertex equality.
-		 * 
-		 * @param f - the Face to compare to this Face.
-		 * @return true if the three vertices are the same (in any order) or false otherwise.
-		 */
-		public boolean equals(Face f) {
-			return 
-				((this.v0 == f.v0) || (this.v0 == f.v1) || (this.v0 == f.v2)) &&
-				((this.v1 == f.v0) || (this.v1 == f.v1) || (this.v1 == f.v2)) &&
-				((this.v2 == f.v0) || (this.v2 == f.v1) || (this.v2 == f.v2));
+		tetCount = first + count;
+	}
+
+	/** Throw an IOException naming path if any of a[start .. end) is outside [lo, hi). */
+	private static void checkIndices(String path, String what, int[] a, int start, int end, int lo, int hi) throws IOException {
+		for (int i = start; i < end; i++) {
+			if (a[i] < lo || a[i] >= hi)
+				throw new IOException(path + " has " + what + " " + a[i] + " out of range at " + (i - start));
 		}
-		
 	}
-	
-	/** A tetrahedron. */
-	private class Tet {
-		public Vert v0, v1, v2, v3;
-		public Face f0, f1, f2, f3;
-		
-		public int mat = 0; //tet material
-		
-		
-		/** Constructor. 
-		 * 
-		 * @param v0 - first vertex
-		 * @param v1 - second vertex
-		 * @param v2 - third vertex 
-		 * @param v3 - fourth vertex
-		 * @param f0 - first face
-		 * @param f1 - second face
-		 * @param f2 - third face 
-		 * @param f3 - fourth face
-		 */
-		public Tet(Vert v0, Vert v1, Vert v2, Vert v3, int mat) {
-			this.v0 = v0;
-			this.v1 = v1;
-			this.v2 = v2;
-			this.v3 = v3;
-			
-			this.mat = mat;
-			
-			//Create/find faces that go with the given verts
-			Face f0 = addFace(new Face (v0, v1, v2));
-			Face f1 = addFace(new Face (v0, v3, v1));
-			Face f2 = addFace(new Face (v0, v2, v3));
-			Face f3 = addFace(new Face (v3, v2, v1));
-			
-			this.f0 = f0;
-			this.f1 = f1;
-			this.f2 = f2;
-			this.f3 = f3;
-			
-			//Set one of the two tets each face stores to be this new tet.
-			f0.setTet(this);
-			f1.setTet(this);
-			f2.setTet(this);
-			f3.setTet(this);
+
+	/**********************************************************
+	 * Memory
+	 ********************************************************/
+
+	/** Estimate how much heap this mesh uses, by part (see MemoryFootprint).
+	 * Vertex arrays count as vertices even though the mesh's vertex buffers wrap them; the face
+	 * registry counts as faces, tet neighbors as adjacency, the BVH as the spatial index, and
+	 * batches and chunks (with their levels of detail) as render buffers. A face registry still
+	 * being built in the background after setTets or load() is not counted yet.
+	 *
+	 * Like any other read of the mesh, call this on the thread that edits it (MemoryFootprintMonitor
+	 * publishes the result to other threads); it never changes the mesh.
+	 */
+	@Override
+	public MemoryFootprint getMemoryFootprint() {
+		MemoryFootprint m = new MemoryFootprint(vertCount, liveFaceCount, liveTetCount);
+		m.add(Part.VERTICES, MemoryFootprint.of(vertPos) + MemoryFootprint.of(vertFaceCount) + MemoryFootprint.of(normSum)
+				+ MemoryFootprint.of(vertShownCount) + MemoryFootprint.of(normArr) + MemoryFootprint.of(texArr));
+		m.add(Part.FACES, MemoryFootprint.of(faceVerts) + MemoryFootprint.of(faceTets) + MemoryFootprint.of(faceBounds)
+				+ MemoryFootprint.of(faceDirty) + MemoryFootprint.of(sideSlot) + MemoryFootprint.of(sideBatch)
+				+ MemoryFootprint.of(sideLit) + MemoryFootprint.of(faceRegistry));
+		m.add(Part.TETS, MemoryFootprint.of(tetVerts) + MemoryFootprint.of(tetFaces) + MemoryFootprint.of(tetMats) + MemoryFootprint.of(tetMark));
+		m.add(Part.ADJACENCY, MemoryFootprint.of(tetNeighbors));
+		m.add(Part.SPATIAL_INDEX, MemoryFootprint.of(bvhBox) + MemoryFootprint.of(bvhChild) + MemoryFootprint.of(bvhParent)
+				+ MemoryFootprint.of(bvhCount) + MemoryFootprint.of(bvhChanges) + MemoryFootprint.of(bvhFaces)
+				+ MemoryFootprint.of(faceLeaf) + MemoryFootprint.of(bvhStack) + MemoryFootprint.of(bvhStackDist));
+
+		long render = MemoryFootprint.array(batches.size(), MemoryFootprint.REFERENCE) + MemoryFootprint.array(chunks.length, MemoryFootprint.REFERENCE);
+		for (int i = 0; i < batches.size(); i++) {
+			Batch b = batches.get(i);
+			render += MemoryFootprint.object(5 * MemoryFootprint.REFERENCE + 8) + MemoryFootprint.of(b.tris)
+					+ MemoryFootprint.of(b.sides) + MemoryFootprint.of(b.culled) + MemoryFootprint.array(b.data.capacity(), 4);
+			if (b.lod != null) {
+				render += MemoryFootprint.array(b.lod.length, MemoryFootprint.REFERENCE);
+				for (int[] tris : b.lod) render += MemoryFootprint.of(tris);
+			}
 		}
-		
-		public String toString() {
-			return "A tet: v0 = " + v0 + ", v1 = " + v1 + ", v2 = " + v2 + ", v3 = " + v3;
+		for (Chunk c : chunks) {
+			if (c == null) continue;
+			render += MemoryFootprint.object(14 * MemoryFootprint.REFERENCE + 12) + MemoryFootprint.of(c.batches)
+					+ MemoryFootprint.of(c.local) + MemoryFootprint.of(c.verts) + MemoryFootprint.of(c.lodError)
+					+ MemoryFootprint.of(c.seamOf) + MemoryFootprint.of(c.seamStart) + MemoryFootprint.of(c.seamChunks)
+					+ MemoryFootprint.of(c.neighbors);
+			if (c.vertexData != null)
+				render += MemoryFootprint.array(c.vertexData.capacity() + c.normalData.capacity() + c.texCoordData.capacity(), 4);
+			if (c.reps != null) {
+				render += MemoryFootprint.array(c.reps.length, MemoryFootprint.REFERENCE);
+				for (int[] reps : c.reps) render += MemoryFootprint.of(reps);
+			}
 		}
-		
-		public boolean equals (Tet t) {
-			return 
-				((this.v0 == t.v0) || (this.v0 == t.v1) || (this.v0 == t.v2) || (this.v0 == t.v3)) &&
-				((this.v1 == t.v0) || (this.v1 == t.v1) || (this.v1 == t.v2) || (this.v1 == t.v3)) &&
-				((this.v2 == t.v0) || (this.v2 == t.v1) || (this.v2 == t.v2) || (this.v2 == t.v3)) &&
-				((this.v3 == t.v0) || (this.v3 == t.v1) || (this.v3 == t.v2) || (this.v3 == t.v3));
+		m.add(Part.RENDER_BUFFERS, render);
+
+		long history = MemoryFootprint.of(undoRecords) + MemoryFootprint.of(undoSteps) + MemoryFootprint.of(redoRecords)
+				+ MemoryFootprint.of(redoSteps) + MemoryFootprint.of(removedTets) + MemoryFootprint.of(freeFaces)
+				+ MemoryFootprint.of(freedFaces) + MemoryFootprint.of(dirtyFaces)
+				+ MemoryFootprint.of(culledVerts) + MemoryFootprint.of(islandSeeds);
+		for (int i = 0; i < islands.size(); i++) history += MemoryFootprint.of(islands.get(i));
+		m.add(Part.HISTORY, history);
+		return m;
+	}
+
+	/** A node of a BVH subtree being built: a leaf covering faces ids[lo .. hi) of the build's ids
+	 * array, or an inner node with two children. bvhWrite copies the finished subtree into the BVH.
+	 */
+	private static class BuildNode {
+		public final float[] box = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE}; //min x, y, z then max x, y, z
+		public final int lo, hi;
+		public BuildNode left; //null for a leaf
+		public BuildNode right;
+
+		BuildNode(int lo, int hi) {
+			this.lo = lo;
+			this.hi = hi;
 		}
 	}
 
@@ -1800,4 +4087,53 @@ public class TetMesh extends Mesh implements OpenGLResourceObject {
 	public Material getMaterial() {
 		return mats.get(0);
 	}
+
+	/** One batch per chunk and material index, each holding the sides of the chunk drawn with that material. */
+	@Override
+	public int getBatchCount() {
+		return batches.size();
+	}
+
+	@Override
+	public IntBuffer getBatchPolygonData(int batch) {
+		return batches.get(batch).data;
+	}
+
+	@Override
+	public FloatBuffer getBatchVertexData(int batch) {
+		return batches.get(batch).chunk.vertexData;
+	}
+
+	@Override
+	public FloatBuffer getBatchNormalData(int batch) {
+		return batches.get(batch).chunk.normalData;
+	}
+
+	@Override
+	public FloatBuffer getBatchTexCoordData(int batch) {
+		return batches.get(batch).chunk.texCoordData;
+	}
+
+	/** Edits give the chunks they touch new buffers, and never write to ones already handed out. */
+	@Override
+	public boolean hasStaticBatchData() {
+		return true;
+	}
+
+	/** The material of tets with batch's material index, or the first material if there are fewer materials. */
+	@Override
+	public Material getBatchMaterial(int batch) {
+		int mat = batches.get(batch).mat;
+		return mats.get(mat < mats.size() ? mat : 0);
+	}
+
+	/** The polygons of all batches; a TetMesh has no single polygon buffer, so getPolygonData() is null. */
+	@Override
+	public int getPolygonCount() {
+		int n = 0;
+		for (Batch b : batches) {
+			n += b.data.capacity() / 3;
+		}
+		return n;
+	}
 }
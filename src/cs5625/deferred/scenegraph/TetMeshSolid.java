@@ -0,0 +1,129 @@
+package cs5625.deferred.scenegraph;
+
+/** A snapshot of a TetMesh's boundary as a Solid, for CSG against another mesh.
+ *
+ * A point is inside if a ray from it straight up (+z) crosses the boundary an odd number of
+ * times. The boundary triangles are binned by their xy bounds into a 2D grid, so a query only
+ * tests the triangles in one column. eval() only gives the sign: -1 inside, 1 outside.
+ */
+class TetMeshSolid implements Solid {
+	private final float[] tris; //{x0, y0, z0, x1, y1, z1, x2, y2, z2} per triangle
+	private final float minX, minY, cellX, cellY;
+	private final int nx, ny;
+	private final int[] cellStart, cellTris; //triangles of cell c are cellTris[cellStart[c] .. cellStart[c + 1])
+
+	/** Build from the first count triangles of tris (nine floats each). */
+	TetMeshSolid(float[] tris, int count) {
+		this.tris = tris;
+		float lx = Float.MAX_VALUE, ly = Float.MAX_VALUE, ux = -Float.MAX_VALUE, uy = -Float.MAX_VALUE;
+		for (int i = 0; i < 3 * count; i++) {
+			lx = Math.min(lx, tris[3 * i]);
+			ux = Math.max(ux, tris[3 * i]);
+			ly = Math.min(ly, tris[3 * i + 1]);
+			uy = Math.max(uy, tris[3 * i + 1]);
+		}
+		if (count == 0) {
+			lx = ly = 0;
+			ux = uy = 1;
+		}
+		//about one triangle per cell, keeping the cells roughly square
+		float w = Math.max(ux - lx, 1e-6f), h = Math.max(uy - ly, 1e-6f);
+		float side = (float)Math.sqrt(w * h / Math.max(count, 1));
+		nx = Math.max(1, Math.min(4096, (int)(w / side)));
+		ny = Math.max(1, Math.min(4096, (int)(h / side)));
+		minX = lx;
+		minY = ly;
+		cellX = w / nx;
+		cellY = h / ny;
+
+		//count, prefix sum, then fill
+		cellStart = new int[nx * ny + 1];
+		for (int t = 0; t < count; t++) {
+			int x0 = cellXOf(triMin(t, 0)), x1 = cellXOf(triMax(t, 0));
+			int y0 = cellYOf(triMin(t, 1)), y1 = cellYOf(triMax(t, 1));
+			for (int y = y0; y <= y1; y++)
+				for (int x = x0; x <= x1; x++)
+					cellStart[y * nx + x + 1]++;
+		}
+		for (int c = 0; c < nx * ny; c++) {
+			cellStart[c + 1] += cellStart[c];
+		}
+		cellTris = new int[cellStart[nx * ny]];
+		int[] fill = new int[nx * ny];
+		for (int t = 0; t < count; t++) {
+			int x0 = cellXOf(triMin(t, 0)), x1 = cellXOf(triMax(t, 0));
+			int y0 = cellYOf(triMin(t, 1)), y1 = cellYOf(triMax(t, 1));
+			for (int y = y0; y <= y1; y++)
+				for (int x = x0; x <= x1; x++) {
+					int c = y * nx + x;
+					cellTris[cellStart[c] + fill[c]++] = t;
+				}
+		}
+	}
+
+	private float triMin(int t, int axis) {
+		return Math.min(tris[9 * t + axis], Math.min(tris[9 * t + 3 + axis], tris[9 * t + 6 + axis]));
+	}
+
+	private float triMax(int t, int axis) {
+		return Math.max(tris[9 * t + axis], Math.max(tris[9 * t + 3 + axis], tris[9 * t + 6 + axis]));
+	}
+
+	private int cellXOf(float x) {
+		return Math.max(0, Math.min(nx - 1, (int)((x - minX) / cellX)));
+	}
+
+	private int cellYOf(float y) {
+		return Math.max(0, Math.min(ny - 1, (int)((y - minY) / cellY)));
+	}
+
+	@Override
+	public float eval(float x, float y, float z) {
+		if (x < minX || y < minY || x > minX + nx * cellX || y > minY + ny * cellY) return 1;
+		int c = cellYOf(y) * nx + cellXOf(x);
+		int crossings = 0;
+		for (int i = cellStart[c]; i < cellStart[c + 1]; i++) {
+			if (crossesAbove(cellTris[i], x, y, z)) crossings++;
+		}
+		return (crossings & 1) == 1 ? -1 : 1;
+	}
+
+	/** True if the vertical line through (x, y) passes through triangle t above z.
+	 * Points on a shared edge or vertex count for exactly one of the triangles that share it
+	 * (a point on an edge of the projected, counter-clockwise triangle only counts if the edge runs
+	 * in one half of all directions, as with the rasterizer's top-left rule), so no crossing is lost or doubled.
+	 */
+	private boolean crossesAbove(int t, float x, float y, float z) {
+		int o = 9 * t;
+		double ax = tris[o], ay = tris[o + 1], bx = tris[o + 3], by = tris[o + 4], cx = tris[o + 6], cy = tris[o + 7];
+		double area = (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+		if (area == 0) return false; //edge-on to the ray
+		int b = 1, c = 2;
+		if (area < 0) {
+			//wind it counter-clockwise in xy
+			double tx = bx, ty = by;
+			bx = cx; by = cy;
+			cx = tx; cy = ty;
+			area = -area;
+			b = 2;
+			c = 1;
+		}
+		double w0 = edge(bx, by, cx, cy, x, y), w1 = edge(cx, cy, ax, ay, x, y), w2 = edge(ax, ay, bx, by, x, y);
+		if (!covers(w0, bx, by, cx, cy) || !covers(w1, cx, cy, ax, ay) || !covers(w2, ax, ay, bx, by))
+			return false;
+		//height of the triangle at (x, y)
+		double hz = (w0 * tris[o + 2] + w1 * tris[o + 3 * b + 2] + w2 * tris[o + 3 * c + 2]) / area;
+		return hz > z;
+	}
+
+	private static double edge(double ax, double ay, double bx, double by, double px, double py) {
+		return (bx - ax) * (py - ay) - (by - ay) * (px - ax);
+	}
+
+	private static boolean covers(double w, double ax, double ay, double bx, double by) {
+		if (w != 0) return w > 0;
+		//on the edge: only edges running down, or right, count
+		double dx = bx - ax, dy = by - ay;
+		return dy < 0 || (dy == 0 && dx > 0);
+	}
+}
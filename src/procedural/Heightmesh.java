@@ -5,15 +5,21 @@ import java.util.ArrayList;
 import javax.media.opengl.GL2;
 import javax.vecmath.Vector3f;
 
+import cs5625.deferred.misc.MemoryFootprint;
+import cs5625.deferred.misc.MemoryFootprint.Part;
 import cs5625.deferred.scenegraph.Geometry;
 import cs5625.deferred.scenegraph.TetMesh;
 
 
 /** Represents a set of heights, their points, and accompanying mesh. */
-public class Heightmesh extends Geometry {
+public class Heightmesh extends Geometry implements MemoryFootprint.Source {
 	private ArrayList<Vertex> verts;
 	private ArrayList<Triangle> triangles;
 	private float[] frequencyMask;
+
+	/** Shells getTetmesh() puts under the surface, and their thickness as a fraction of the radius. */
+	public static final int DEFAULT_SHELLS = 8;
+	public static final float DEFAULT_SHELL_THICKNESS = 0.1f;
 	
 	/** Create a new Heightmesh. */
 	public Heightmesh() {
@@ -465,81 +471,102 @@ public class Heightmesh extends Geometry {
 		
 	}
 	
-	/** Returns a TetMesh containing a planet built from this Heightmesh. */
+	/** Returns a TetMesh containing a planet built from this Heightmesh, with DEFAULT_SHELLS shells
+	 * of DEFAULT_SHELL_THICKNESS, see getTetmesh(int, float). */
 	public TetMesh getTetmesh() {
-		TetMesh planetMesh = new TetMesh();
-		
-		ArrayList<Vertex> vertsHM = getVerts();
-		int numVerts = vertsHM.size() + 1;
-		ArrayList<Triangle> trisHM = getTriangles();
-		
-		ArrayList<Vector3f> verts = new ArrayList<Vector3f>(numVerts);
-		ArrayList<Integer> tets = new ArrayList<Integer>(trisHM.size()*4);
-		
-		for (Vertex v: vertsHM) {
-			verts.add(v.pt.v);
-		}
-		
-		verts.add(new Vector3f(0.0f, 0.0f, 0.0f)); //heart of the world
-		
-		for (int i = 0; i < trisHM.size(); i+= 1) {
-			Triangle t = trisHM.get(i);
-			tets.add(t.v0);
-			tets.add(t.v1);
-			tets.add(t.v2);
-			tets.add(numVerts - 1);
-		}
-		
-		
-		
-		/*
-		int n = 10;
-		
-		for (int i = n; i > 0; i--) {
-			for (Vertex v : vertsHM) {
-				Vector3f ve = new Vector3f(v.pt.v);
-				ve.scale((float)i / (float)n);
-				verts.add(ve);
+		return getTetmesh(DEFAULT_SHELLS, DEFAULT_SHELL_THICKNESS);
+	}
+
+	/** Returns a TetMesh containing a planet built from this Heightmesh, in layers.
+	 *
+	 * Under the surface are shells more copies of it, each scaled towards the center by thickness
+	 * (a fraction of each vertex's distance from the center). The space between two shells is
+	 * one prism per triangle, split into three tets; the core below the last shell is fanned to a
+	 * vertex at the center, which anchors the planet. With no shells every tet runs from the surface
+	 * to the center.
+	 *
+	 * @param shells number of shells under the surface
+	 * @param thickness depth of each shell; shells * thickness must be less than 1
+	 */
+	public TetMesh getTetmesh(int shells, float thickness) {
+		if (shells < 0 || thickness <= 0 || shells * thickness >= 1)
+			throw new IllegalArgumentException(shells + " shells of thickness " + thickness + " do not fit in the planet");
+		int vertCount = verts.size(), triCount = triangles.size();
+
+		//layer j (0 the surface) of vertex v is vertex j * vertCount + v; the center comes last
+		int center = (shells + 1) * vertCount;
+		float[] pos = new float[3 * (center + 1)];
+		for (int v = 0; v < vertCount; v++) {
+			Vector3f p = verts.get(v).pt.v;
+			for (int j = 0; j <= shells; j++) {
+				float k = 1 - j * thickness;
+				int o = 3 * (j * vertCount + v);
+				pos[o] = p.x * k;
+				pos[o + 1] = p.y * k;
+				pos[o + 2] = p.z * k;
 			}
 		}
-		
-				
-		// add center of the planet as a point
-		verts.add(new Vector3f(0f,0f,0f));
-		
-		planetMesh.setVerts(verts);
-		
-		
-		for (int i = 0; i < trisHM.size(); i+= 1) {
-			Triangle t = trisHM.get(i);
-			for (int j = 0; j < n - 1; j++) {
-				
-				tets.add(t.v0 + j * vertsHM.size());
-				tets.add(t.v1 + j * vertsHM.size());
-				tets.add(t.v2 + j * vertsHM.size());
-				tets.add(t.v0 + (j + 1) * vertsHM.size());
-				
-				//add two more
-				tets.add(t.v1 + j * vertsHM.size());
-				tets.add(t.v2 + j * vertsHM.size());
-				tets.add(t.v0 + (j + 1) * vertsHM.size());
-				tets.add(t.v1 + (j + 1) * vertsHM.size());
-				
-				
-				tets.add(t.v2 + j * vertsHM.size());
-				tets.add(t.v2 + (j + 1) * vertsHM.size());
-				tets.add(t.v0 + (j + 1) * vertsHM.size());
-				tets.add(t.v1 + (j + 1) * vertsHM.size());
-				
+
+		int[] tets = new int[4 * triCount * (3 * shells + 1)];
+		int n = 0;
+		for (Triangle t : triangles) {
+			//Split each prism along the diagonals from the higher numbered vertex of an edge to the lower
+			//numbered one a layer down, so neighbouring prisms split their shared side the same way.
+			//With a < b < c that gives the tets abca', bca'b' and ca'b'c', all wound like abc and the center
+			//(a' is nearer the center than abc), so swap two verts if sorting the triangle reversed it.
+			int a = t.v0, b = t.v1, c = t.v2;
+			boolean odd = false;
+			if (a > b) {int x = a; a = b; b = x; odd = !odd;}
+			if (b > c) {int x = b; b = c; c = x; odd = !odd;}
+			if (a > b) {int x = a; a = b; b = x; odd = !odd;}
+			for (int j = 0; j < shells; j++) {
+				int o = j * vertCount, d = o + vertCount;
+				n = putTet(tets, n, odd, a + o, b + o, c + o, a + d);
+				n = putTet(tets, n, odd, b + o, c + o, a + d, b + d);
+				n = putTet(tets, n, odd, c + o, a + d, b + d, c + d);
 			}
-			tets.add(t.v0 + (n - 1) * vertsHM.size());
-			tets.add(t.v1 + (n - 1) * vertsHM.size());
-			tets.add(t.v2 + (n - 1) * vertsHM.size());
-			tets.add(numVerts-1);
+			int o = shells * vertCount;
+			n = putTet(tets, n, odd, a + o, b + o, c + o, center);
 		}
-		*/
-		planetMesh.setVerts(verts);
-		planetMesh.setTets(tets);
+
+		TetMesh planetMesh = new TetMesh();
+		planetMesh.setVerts(pos, center + 1);
+		planetMesh.setTets(tets, n / 4);
+		planetMesh.setAnchor(center);
 		return planetMesh;
 	}
+
+	/** Estimate how much heap this Heightmesh uses (see MemoryFootprint): each vertex with its position
+	 * and direction, each triangle, and each vertex's neighbour list as adjacency. Counts are verts and
+	 * triangles (as faces); a Heightmesh has no tets, spatial index, or render buffers.
+	 */
+	@Override
+	public MemoryFootprint getMemoryFootprint() {
+		MemoryFootprint m = new MemoryFootprint(verts.size(), triangles.size(), 0);
+		//Vertex, plus a Vec3f and its Vector3f for each of pt and dir
+		long vertex = MemoryFootprint.object(4 * MemoryFootprint.REFERENCE + 4)
+				+ 2 * (MemoryFootprint.object(MemoryFootprint.REFERENCE) + MemoryFootprint.object(12));
+		m.add(Part.VERTICES, list(verts.size()) + verts.size() * vertex + MemoryFootprint.of(frequencyMask));
+		m.add(Part.FACES, list(triangles.size()) + triangles.size() * MemoryFootprint.object(12));
+		long adjacency = 0;
+		for (Vertex v : verts) {
+			adjacency += list(v.neighbors.size());
+		}
+		m.add(Part.ADJACENCY, adjacency);
+		return m;
+	}
+
+	/** Size of an ArrayList holding n references (taking its backing array to be full). */
+	private static long list(int n) {
+		return MemoryFootprint.object(MemoryFootprint.REFERENCE + 8) + MemoryFootprint.array(n, MemoryFootprint.REFERENCE);
+	}
+
+	/** Write tet p0 p1 p2 p3 (with p0 and p1 swapped if swap) into tets at n, and return the index after it. */
+	private static int putTet(int[] tets, int n, boolean swap, int p0, int p1, int p2, int p3) {
+		tets[n++] = swap ? p1 : p0;
+		tets[n++] = swap ? p0 : p1;
+		tets[n++] = p2;
+		tets[n++] = p3;
+		return n;
+	}
 }